@@ -1048,6 +1048,8 @@ public class J
    }
 
    /**
+    * True if file itself is a symbolic link.  Links in the parent directories do not count.
+    * 
     * @see io.forty11.j.api.Files#isLink(java.io.File)
     */
    public static boolean isLink(java.io.File file)
@@ -1094,6 +1096,40 @@ public class J
       }
    }
 
+   /**
+    * Iterates over the lines of the file as they are decoded, instead of reading it all first
+    * 
+    * @see io.forty11.j.api.Files#lines(java.io.File, java.nio.charset.Charset)
+    */
+   public static io.forty11.j.it.LineIt lines(java.io.File file, java.nio.charset.Charset charset)
+   {
+      try
+      {
+         return io.forty11.j.api.Files.lines(file, charset);
+      }
+      catch (Exception ex)
+      {
+         throw ex instanceof RuntimeException ? (RuntimeException) ex : new RuntimeException(ex);
+      }
+   }
+
+   /**
+    * Iterates over the lines of the stream as they are decoded, closing it at the end
+    * 
+    * @see io.forty11.j.api.Streams#lines(java.io.InputStream, java.nio.charset.Charset)
+    */
+   public static io.forty11.j.it.LineIt lines(java.io.InputStream in, java.nio.charset.Charset charset)
+   {
+      try
+      {
+         return io.forty11.j.api.Streams.lines(in, charset);
+      }
+      catch (Exception ex)
+      {
+         throw ex instanceof RuntimeException ? (RuntimeException) ex : new RuntimeException(ex);
+      }
+   }
+
    /**
     * @see io.forty11.j.api.Files#listFiles(java.io.File)
     */
@@ -1139,6 +1175,23 @@ public class J
       }
    }
 
+   /**
+    * Maps the whole file into a read only buffer
+    * 
+    * @see io.forty11.j.api.Files#map(java.io.File)
+    */
+   public static java.nio.MappedByteBuffer map(java.io.File file)
+   {
+      try
+      {
+         return io.forty11.j.api.Files.map(file);
+      }
+      catch (Exception ex)
+      {
+         throw ex instanceof RuntimeException ? (RuntimeException) ex : new RuntimeException(ex);
+      }
+   }
+
    /**
     * Hash the bytes with MD5
     * 
@@ -1414,6 +1467,74 @@ public class J
       }
    }
 
+   /**
+    * Reads the whole file into a String decoded with charset
+    * 
+    * @see io.forty11.j.api.Files#read(java.io.File, java.nio.charset.Charset)
+    */
+   public static java.lang.String read(java.io.File file, java.nio.charset.Charset charset)
+   {
+      try
+      {
+         return io.forty11.j.api.Files.read(file, charset);
+      }
+      catch (Exception ex)
+      {
+         throw ex instanceof RuntimeException ? (RuntimeException) ex : new RuntimeException(ex);
+      }
+   }
+
+   /**
+    * Reads the whole file into a byte array sized to fit
+    * 
+    * @see io.forty11.j.api.Files#readBytes(java.io.File)
+    */
+   public static byte[] readBytes(java.io.File file)
+   {
+      try
+      {
+         return io.forty11.j.api.Files.readBytes(file);
+      }
+      catch (Exception ex)
+      {
+         throw ex instanceof RuntimeException ? (RuntimeException) ex : new RuntimeException(ex);
+      }
+   }
+
+   /**
+    * Iterates over the delimiter separated records of the file as they are decoded
+    * 
+    * @see io.forty11.j.api.Files#records(java.io.File, java.nio.charset.Charset, java.lang.String)
+    */
+   public static io.forty11.j.it.LineIt records(java.io.File file, java.nio.charset.Charset charset, java.lang.String delimiter)
+   {
+      try
+      {
+         return io.forty11.j.api.Files.records(file, charset, delimiter);
+      }
+      catch (Exception ex)
+      {
+         throw ex instanceof RuntimeException ? (RuntimeException) ex : new RuntimeException(ex);
+      }
+   }
+
+   /**
+    * Iterates over the delimiter separated records of the stream as they are decoded, closing it at the end
+    * 
+    * @see io.forty11.j.api.Streams#records(java.io.InputStream, java.nio.charset.Charset, java.lang.String)
+    */
+   public static io.forty11.j.it.LineIt records(java.io.InputStream in, java.nio.charset.Charset charset, java.lang.String delimiter)
+   {
+      try
+      {
+         return io.forty11.j.api.Streams.records(in, charset, delimiter);
+      }
+      catch (Exception ex)
+      {
+         throw ex instanceof RuntimeException ? (RuntimeException) ex : new RuntimeException(ex);
+      }
+   }
+
    /**
     * Performs string.matches() but also checks for null
     * 
@@ -1561,6 +1682,23 @@ public class J
       }
    }
 
+   /**
+    * Memoizes up to size path(String) results for paths that are normalized over and over, 0 turns the cache off
+    * 
+    * @see io.forty11.j.api.Paths#setPathCache(int)
+    */
+   public static void setPathCache(int size)
+   {
+      try
+      {
+         io.forty11.j.api.Paths.setPathCache(size);
+      }
+      catch (Exception ex)
+      {
+         throw ex instanceof RuntimeException ? (RuntimeException) ex : new RuntimeException(ex);
+      }
+   }
+
    /**
     * Hash the bytes with SHA-1
     * 
@@ -1725,6 +1863,23 @@ public class J
       }
    }
 
+   /**
+    * Copies src to dst through a temp file that is atomically renamed into place, keeping the modified time
+    * 
+    * @see io.forty11.j.api.Files#transfer(java.io.File, java.io.File)
+    */
+   public static long transfer(java.io.File srcFile, java.io.File dstFile)
+   {
+      try
+      {
+         return io.forty11.j.api.Files.transfer(srcFile, dstFile);
+      }
+      catch (Exception ex)
+      {
+         throw ex instanceof RuntimeException ? (RuntimeException) ex : new RuntimeException(ex);
+      }
+   }
+
    /**
     * Pattern matches the string using ? to indicate any one single value and * to indicate any 0-n multiple values
     * 
@@ -1806,4 +1961,38 @@ public class J
       }
    }
 
+   /**
+    * Atomically replaces file with text through a temp file, forcing it to disk first if sync is true
+    * 
+    * @see io.forty11.j.api.Files#write(java.io.File, java.lang.CharSequence, java.nio.charset.Charset, boolean)
+    */
+   public static void write(java.io.File file, java.lang.CharSequence text, java.nio.charset.Charset charset, boolean sync)
+   {
+      try
+      {
+         io.forty11.j.api.Files.write(file, text, charset, sync);
+      }
+      catch (Exception ex)
+      {
+         throw ex instanceof RuntimeException ? (RuntimeException) ex : new RuntimeException(ex);
+      }
+   }
+
+   /**
+    * Atomically replaces each file with its text, forcing them to disk as one group if sync is true
+    * 
+    * @see io.forty11.j.api.Files#write(java.util.Map, java.nio.charset.Charset, boolean)
+    */
+   public static void write(java.util.Map files, java.nio.charset.Charset charset, boolean sync)
+   {
+      try
+      {
+         io.forty11.j.api.Files.write(files, charset, sync);
+      }
+      catch (Exception ex)
+      {
+         throw ex instanceof RuntimeException ? (RuntimeException) ex : new RuntimeException(ex);
+      }
+   }
+
 }
@@ -16,20 +16,34 @@
 package io.forty11.j.api;
 
 import java.io.BufferedWriter;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
 
 import io.forty11.j.it.FileIt;
 import io.forty11.j.it.It;
+import io.forty11.j.it.LineIt;
+import io.forty11.j.utils.Copier;
 
 public class Files
 {
@@ -259,22 +273,97 @@ public class Files
    }
 
    @ApiMethod
+   @Comment(value = "True if file itself is a symbolic link.  Links in the parent directories do not count.")
    public static boolean isLink(File file) throws Exception
    {
-      String cnnpath = file.getCanonicalPath();
-      String abspath = file.getAbsolutePath();
-      return !abspath.equals(cnnpath);
+      return java.nio.file.Files.isSymbolicLink(file.toPath());
    }
 
    @ApiMethod
    public static String read(File file) throws Exception
    {
-      ByteArrayOutputStream out = new ByteArrayOutputStream();
-      FileInputStream in = new FileInputStream(file);
-      Streams.pipe(in, out);
-      return new String(out.toByteArray());
+      return read(file, Charset.defaultCharset());
    }
 
+   @ApiMethod
+   @Comment(value = "Reads the whole file into a String decoded with charset")
+   public static String read(File file, Charset charset) throws IOException
+   {
+      return new String(readBytes(file), charset);
+   }
+
+   @ApiMethod
+   @Comment(value = "Iterates over the lines of the file as they are decoded, instead of reading it all first")
+   public static LineIt lines(File file, Charset charset) throws IOException
+   {
+      return new LineIt(java.nio.file.Files.newInputStream(file.toPath()), charset);
+   }
+
+   @ApiMethod
+   @Comment(value = "Iterates over the delimiter separated records of the file as they are decoded")
+   public static LineIt records(File file, Charset charset, String delimiter) throws IOException
+   {
+      return new LineIt(java.nio.file.Files.newInputStream(file.toPath()), charset, delimiter);
+   }
+
+   /**
+    * Reads into an array sized from the file's length up front, so the
+    * bytes are only held once.
+    */
+   @ApiMethod
+   @Comment(value = "Reads the whole file into a byte array sized to fit")
+   public static byte[] readBytes(File file) throws IOException
+   {
+      try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ))
+      {
+         long size = in.size();
+         if (size > Integer.MAX_VALUE - 8)
+            throw new IOException("File is too large to read into an array: " + file);
+
+         byte[] bytes = new byte[(int) size];
+         int length = 0;
+         while (true)
+         {
+            if (length == bytes.length)
+            {
+               //the file may have grown since its size was read
+               ByteBuffer one = ByteBuffer.allocate(1);
+               if (in.read(one) <= 0)
+                  break;
+
+               bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, Streams.K64));
+               bytes[length++] = one.get(0);
+            }
+
+            int count = in.read(ByteBuffer.wrap(bytes, length, bytes.length - length));
+            if (count < 0)
+               break;
+            length += count;
+         }
+         return length == bytes.length ? bytes : Arrays.copyOf(bytes, length);
+      }
+   }
+
+   /**
+    * The buffer reads straight from the OS page cache without copying the
+    * file onto the heap, and stays valid after the file is closed.  Files
+    * over 2GB can not be mapped in one buffer.
+    */
+   @ApiMethod
+   @Comment(value = "Maps the whole file into a read only buffer")
+   public static MappedByteBuffer map(File file) throws IOException
+   {
+      try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ))
+      {
+         return in.map(FileChannel.MapMode.READ_ONLY, 0, in.size());
+      }
+   }
+
+   /**
+    * Writes in place, keeping the file's links, owner and permissions.
+    * Use write(File, CharSequence, Charset, boolean) to replace it
+    * atomically instead.
+    */
    @ApiMethod
    public static void write(File file, String text) throws Exception
    {
@@ -287,6 +376,89 @@ public class Files
       bw.close();
    }
 
+   /**
+    * Encodes <code>text</code> straight into a buffer, writes it to a temp
+    * file next to <code>file</code> and renames it over <code>file</code>,
+    * so a crash leaves either the old content or the new, never part of
+    * it.  An existing file's permissions are kept and a link is written
+    * through to its target.
+    *
+    * @param sync - force the file and then its directory to disk before returning
+    */
+   @ApiMethod
+   @Comment(value = "Atomically replaces file with text through a temp file, forcing it to disk first if sync is true")
+   public static void write(File file, CharSequence text, Charset charset, boolean sync) throws IOException
+   {
+      write(Collections.singletonMap(file, text), charset, sync);
+   }
+
+   /**
+    * Atomically replaces each file the same way as
+    * write(File, CharSequence, Charset, boolean), but when syncing every
+    * temp file is written before any is forced, and each directory is
+    * forced once after all of the renames, so the file system can group
+    * the flushes instead of waiting on each file in turn.
+    * <p>
+    * If anything fails no more files are renamed and the temp files that
+    * were not renamed are deleted.
+    */
+   @ApiMethod
+   @Comment(value = "Atomically replaces each file with its text, forcing them to disk as one group if sync is true")
+   public static void write(Map<File, ? extends CharSequence> files, Charset charset, boolean sync) throws IOException
+   {
+      List<Path[]> pending = new ArrayList();
+      int renamed = 0;
+      try
+      {
+         for (Map.Entry<File, ? extends CharSequence> entry : files.entrySet())
+         {
+            Path dst = target(entry.getKey());
+            java.nio.file.Files.createDirectories(dst.getParent());
+
+            Path temp = temp(dst);
+            pending.add(new Path[]{temp, dst});
+
+            ByteBuffer bytes = charset.encode(CharBuffer.wrap(entry.getValue()));
+            try (FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW))
+            {
+               //in slices so the channel's temporary direct buffer stays small
+               int end = bytes.limit();
+               while (bytes.position() < end)
+               {
+                  bytes.limit(Math.min(end, bytes.position() + Streams.MB));
+                  out.write(bytes);
+               }
+            }
+            copyPermissions(dst, temp);
+         }
+
+         if (sync)
+         {
+            for (Path[] paths : pending)
+               force(paths[0]);
+         }
+
+         Set<Path> dirs = new LinkedHashSet();
+         for (Path[] paths : pending)
+         {
+            replace(paths[0], paths[1]);
+            renamed += 1;
+            dirs.add(paths[1].getParent());
+         }
+
+         if (sync)
+         {
+            for (Path dir : dirs)
+               force(dir);
+         }
+      }
+      finally
+      {
+         for (int i = renamed; i < pending.size(); i++)
+            java.nio.file.Files.deleteIfExists(pending.get(i)[0]);
+      }
+   }
+
    @ApiMethod
    public static void write(String file, String text) throws Exception
    {
@@ -379,21 +551,24 @@ public class Files
       return false;
    }
 
+   /**
+    * Copies, in parallel, the files that are missing or older in
+    * <code>dstDir</code>, the same rule as copyFile().  Use a Copier
+    * directly to compare sizes and times, hash, or see progress.
+    */
    protected static void copyDir(File srcDir, File dstDir)
    {
-      for (File file : Files.listFiles(srcDir))
-      {
-         copy(srcDir, file, dstDir);
-      }
+      new Copier(srcDir, dstDir).setSkipNewer(true).copy();
    }
 
+   /**
+    * Skips a destination modified at or after the source.  transfer()
+    * gives the copy the source's modified time so it is skipped next time.
+    *
+    * @return true if the file was copied
+    */
    protected static boolean copyFile(File srcFile, File dstFile)
    {
-      FileInputStream fis = null;
-      FileOutputStream fos = null;
-      FileChannel sourceChannel = null;
-      FileChannel destinationChannel = null;
-
       try
       {
          if (!dstFile.getParentFile().exists())
@@ -408,73 +583,137 @@ public class Files
             }
          }
 
-         fis = new FileInputStream(srcFile);
-         fos = new FileOutputStream(dstFile);
-         sourceChannel = fis.getChannel();
-         destinationChannel = fos.getChannel();
-         destinationChannel.transferFrom(sourceChannel, 0, sourceChannel.size());
-         sourceChannel.close();
-         destinationChannel.close();
-         fis.close();
-         fos.close();
-
-         dstFile.setLastModified(srcFile.lastModified());
+         transfer(srcFile, dstFile);
       }
       catch (Exception ex)
       {
          return false;
       }
-      finally
+      return true;
+   }
+
+   /**
+    * Copies into a temp file next to <code>dstFile</code> with channel to
+    * channel transfers, looping until every byte has moved as a single
+    * transfer may move less, then stamps it with the source's modified time
+    * and renames it over <code>dstFile</code>.  Readers see the old file or
+    * the whole new one, never part of it, and a failed copy leaves no
+    * partial file behind.  The copy gets the source's POSIX permissions,
+    * so an executable stays executable.
+    * <p>
+    * A link at <code>dstFile</code> is written through to its target.  The
+    * target is still replaced by a new file, so it gets the owner and
+    * group of the process rather than keeping its own, and other hard
+    * links to it keep the old content.
+    *
+    * @return the number of bytes copied
+    */
+   @ApiMethod
+   @Comment(value = "Copies src to dst through a temp file that is atomically renamed into place, keeping the modified time")
+   public static long transfer(File srcFile, File dstFile) throws IOException
+   {
+      Path src = srcFile.toPath();
+      Path dst = target(dstFile);
+      Path temp = temp(dst);
+      try
       {
-         if (sourceChannel != null)
+         long position = 0;
+         try (FileChannel in = FileChannel.open(src, StandardOpenOption.READ); FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW))
          {
-            try
+            long size = in.size();
+            while (position < size)
             {
-               sourceChannel.close();
-            }
-            catch (Exception ex)
-            {
-
+               long count = in.transferTo(position, size - position, out);
+               if (count <= 0)
+                  throw new IOException("Copied " + position + " of " + size + " bytes from " + src);
+               position += count;
             }
          }
 
-         if (destinationChannel != null)
-         {
-            try
-            {
-               destinationChannel.close();
-            }
-            catch (Exception ex)
-            {
+         copyPermissions(src, temp);
+         java.nio.file.Files.setLastModifiedTime(temp, java.nio.file.Files.getLastModifiedTime(src));
+         replace(temp, dst);
+         temp = null;
+         return position;
+      }
+      finally
+      {
+         if (temp != null)
+            java.nio.file.Files.deleteIfExists(temp);
+      }
+   }
 
-            }
-         }
+   /**
+    * @return a new, unused, hidden name in the same directory as <code>dst</code>
+    */
+   static Path temp(Path dst)
+   {
+      return dst.resolveSibling("." + dst.getFileName() + "." + Long.toHexString(ThreadLocalRandom.current().nextLong()) + ".tmp");
+   }
 
-         if (fis != null)
-         {
-            try
-            {
-               fis.close();
-            }
-            catch (Exception ex)
-            {
+   /**
+    * Renames <code>temp</code> over <code>dst</code>, atomically if the
+    * file system can.
+    */
+   static void replace(Path temp, Path dst) throws IOException
+   {
+      try
+      {
+         java.nio.file.Files.move(temp, dst, StandardCopyOption.ATOMIC_MOVE);
+      }
+      catch (AtomicMoveNotSupportedException ex)
+      {
+         java.nio.file.Files.move(temp, dst, StandardCopyOption.REPLACE_EXISTING);
+      }
+   }
 
-            }
-         }
+   /**
+    * @return the file a write to <code>file</code> should replace, which is
+    *         the target if it is a link
+    */
+   static Path target(File file)
+   {
+      Path path = file.toPath().toAbsolutePath();
+      try
+      {
+         if (java.nio.file.Files.isSymbolicLink(path))
+            path = path.toRealPath();
+      }
+      catch (IOException ex)
+      {
+         //a broken link is replaced like a file
+      }
+      return path;
+   }
 
-         if (fos != null)
-         {
-            try
-            {
-               fos.close();
-            }
-            catch (Exception ex)
-            {
+   static void copyPermissions(Path from, Path to)
+   {
+      try
+      {
+         java.nio.file.Files.setPosixFilePermissions(to, java.nio.file.Files.getPosixFilePermissions(from));
+      }
+      catch (UnsupportedOperationException | IOException ex)
+      {
+         //a new file, or not a POSIX file system
+      }
+   }
 
-            }
-         }
+   /**
+    * Flushes a file, or a directory's entries, to disk.
+    */
+   static void force(Path path) throws IOException
+   {
+      boolean dir = java.nio.file.Files.isDirectory(path);
+      try (FileChannel channel = FileChannel.open(path, dir ? StandardOpenOption.READ : StandardOpenOption.WRITE))
+      {
+         channel.force(true);
+      }
+      catch (IOException ex)
+      {
+         //directories can not be opened or forced on some platforms, e.g. Windows
+         if (!dir)
+            throw ex;
       }
-      return true;
    }
 
    @ApiMethod
@@ -19,10 +19,17 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.regex.Pattern;
 
+import io.forty11.j.utils.Glob;
+
 public class PathSet
 {
-   List<Path> includes = new ArrayList();
-   List<Path> excludes = new ArrayList();
+   public static final int INCLUDED = 1;
+   public static final int EXCLUDED = 2;
+
+   List<Path>              includes = new ArrayList();
+   List<Path>              excludes = new ArrayList();
+
+   Glob                    glob     = null;
 
    public PathSet()
    {
@@ -52,13 +59,8 @@ public class PathSet
       }
       else
       {
-         for (Path p : includes)
-         {
-            if (p.matches(path))
-               return true;
-         }
+         return (getGlob().match(path) & INCLUDED) != 0;
       }
-      return false;
    }
 
    public boolean excluded(String path)
@@ -69,14 +71,33 @@ public class PathSet
       }
       else
       {
-         for (Path p : excludes)
-         {
-            if (p.matches(path))
-               return true;
-         }
+         return (getGlob().match(path) & EXCLUDED) != 0;
+      }
+   }
+
+   /**
+    * @return every include and exclude compiled into a single matcher
+    *         reporting the INCLUDED and EXCLUDED bits
+    */
+   public Glob getGlob()
+   {
+      Glob glob = this.glob;
+      if (glob == null || glob.size() != includes.size() + excludes.size())
+      {
+         glob = new Glob(patterns(includes), patterns(excludes));
+         this.glob = glob;
       }
+      return glob;
+   }
 
-      return false;
+   static String[] patterns(List<Path> paths)
+   {
+      String[] patterns = new String[paths.size()];
+      for (int i = 0; i < patterns.length; i++)
+      {
+         patterns[i] = paths.get(i).getPath();
+      }
+      return patterns;
    }
 
    public List<Path> getIncludes()
@@ -96,6 +117,7 @@ public class PathSet
                this.includes.add(p);
          }
       }
+      glob = null;
    }
 
    public List<Path> getExcludes()
@@ -115,20 +137,56 @@ public class PathSet
                this.excludes.add(p);
          }
       }
+      glob = null;
    }
 
    public static class Path
    {
-      String   path   = null;
-      Pattern  regex  = null;
-      String[] chunks = null;
+      String   path     = null;
+      Pattern  regex    = null;
+      String[] chunks   = null;
+      String[] segments = null;
+      Glob     glob     = null;
+      Glob[]   globs    = null;
 
       public Path(String path)
       {
          path = Paths.path(path);
          this.path = path;
-         regex = Pattern.compile(Strings.wildcardToRegex(path));
+         glob = new Glob(new String[]{path});
          chunks = Paths.chunks(path);
+         segments = segments(path);
+
+         globs = new Glob[segments.length];
+         for (int i = 0; i < segments.length; i++)
+         {
+            globs[i] = new Glob(new String[]{segments[i]});
+         }
+      }
+
+      /**
+       * Like Paths.chunks() but literal directories are not joined,
+       * so each segment matches exactly one file or directory name.
+       */
+      static String[] segments(String path)
+      {
+         List<String> segments = new ArrayList();
+
+         //treat the leading '/' as if were its own directory name
+         if (path.startsWith("/"))
+            segments.add("/");
+
+         for (String segment : path.split("/"))
+         {
+            if (segment.length() > 0)
+               segments.add(segment);
+         }
+
+         //if the path ends with a "/", the last segment needs to include the slash
+         if (path.endsWith("/") && path.length() > 1)
+            segments.set(segments.size() - 1, segments.get(segments.size() - 1) + "/");
+
+         return segments.toArray(new String[segments.size()]);
       }
 
       public boolean isWildcard()
@@ -138,7 +196,15 @@ public class PathSet
 
       public boolean matches(String path)
       {
-         return regex.matcher(path).matches();
+         return glob.matches(path);
+      }
+
+      /**
+       * @return true if <code>name</code> matches the segment at <code>index</code>
+       */
+      public boolean matches(int index, String name)
+      {
+         return globs[index].matches(name);
       }
 
       public String getPath()
@@ -151,8 +217,16 @@ public class PathSet
          return chunks;
       }
 
+      public String[] getSegments()
+      {
+         return segments;
+      }
+
       public Pattern getRegex()
       {
+         if (regex == null)
+            regex = Pattern.compile(Strings.wildcardToRegex(path));
+
          return regex;
       }
 
@@ -26,36 +26,27 @@ import java.net.URL;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.zip.ZipFile;
 
 public class Paths
 {
-   //   public static String[][] replacements = new String[7][2];
-   //   static
-   //   {
-   //      int i = -1;
-   //      replacements[++i][0] = "\\";
-   //      replacements[i][1] = "/";
-   //
-   //      replacements[++i][0] = "/**/**/";
-   //      replacements[i][1] = "/**/";
-   //
-   //      replacements[++i][0] = "/**/*/";
-   //      replacements[i][1] = "/**/";
-   //
-   //      replacements[++i][0] = "/*/**/";
-   //      replacements[i][1] = "/**/";
-   //
-   //      replacements[++i][0] = "?*";
-   //      replacements[i][1] = "*";
-   //
-   //      replacements[++i][0] = "*?";
-   //      replacements[i][1] = "*";
-   //
-   //      replacements[++i][0] = "***";
-   //      replacements[i][1] = "**";
-   //   }
+   static volatile Map<String, String> cache     = null;
+   static int                          cacheSize = 0;
 
+   /**
+    * Normalizes in a single pass over <code>path</code>, doing what used to
+    * be repeated replaces:
+    * <ul>
+    *   <li>'\\' becomes '/' and repeated separators collapse into one
+    *   <li>a run of '*' and '?' with any '*' in it becomes '*' or '**'
+    *   <li>'/**&#47;**&#47;', '/**&#47;*&#47;' and '/*&#47;**&#47;' fold into '/**&#47;'
+    *   <li>a leading and a trailing '/' are kept
+    * </ul>
+    * The result is always fully normalized so path(path(x)) equals path(x).
+    * A path that is already normalized is returned as is.
+    */
    @ApiMethod
    @Comment(value = "Attempts to normalize a file path reference removing redundant wild cards and normalizing to \"/\" as the separator")
    public static String path(String path)
@@ -63,37 +54,151 @@ public class Paths
       if (path == null)
          return "";
 
+      Map<String, String> cache = Paths.cache;
+      if (cache != null)
+      {
+         String normalized = cache.get(path);
+         if (normalized == null)
+         {
+            normalized = normalize(path);
+            if (cache.size() >= cacheSize)
+               cache.clear();
+            cache.put(path, normalized);
+         }
+         return normalized;
+      }
+
+      return normalize(path);
+   }
+
+   /**
+    * @param size - the number of path(String) results to remember, or 0 to
+    *               turn the cache off.  The cache is emptied when full.
+    */
+   @ApiMethod
+   @Comment(value = "Memoizes up to size path(String) results for paths that are normalized over and over, 0 turns the cache off")
+   public static void setPathCache(int size)
+   {
+      cacheSize = size;
+      cache = size > 0 ? new ConcurrentHashMap() : null;
+   }
+
+   static String normalize(String path)
+   {
       path = path.trim();
 
-      if (path.length() == 0)
+      int length = path.length();
+      if (length == 0)
          return "";
 
-      path = Strings.replace(path, "\\", "/");
-      path = Strings.replace(path, "/**/**/", "/**/");
-      path = Strings.replace(path, "/**/*/", "/**/");
-      path = Strings.replace(path, "/*/**/", "/**/");
-      path = Strings.replace(path, "?*", "*");
-      path = Strings.replace(path, "*?", "*");
-      path = Strings.replace(path, "***", "**");
+      char[] out = new char[length + 1];
+      int o = 0;
+      int segments = 0;
 
-      String[] segs = path.split("/");
+      boolean leading = path.charAt(0) == '/' || path.charAt(0) == '\\';
+      if (leading)
+         out[o++] = '/';
 
-      StringBuffer buff = path.charAt(0) == '/' ? new StringBuffer("/") : new StringBuffer("");
-      for (int i = 0; i < segs.length; i++)
+      for (int i = 0; i < length;)
       {
-         if (segs[i].length() > 0)
+         char c = path.charAt(i);
+         if (c == '/' || c == '\\')
          {
-            buff.append(segs[i]).append('/');
+            i++;
+            continue;
+         }
+
+         int start = o;
+         while (i < length && (c = path.charAt(i)) != '/' && c != '\\')
+         {
+            if (c == '*' || c == '?')
+            {
+               int run = i;
+               int stars = 0;
+               for (; i < length && ((c = path.charAt(i)) == '*' || c == '?'); i++)
+               {
+                  if (c == '*')
+                     stars++;
+               }
+
+               if (stars == 0)
+               {
+                  for (; run < i; run++)
+                     out[o++] = '?';
+               }
+               else
+               {
+                  out[o++] = '*';
+                  if (stars > 1)
+                     out[o++] = '*';
+               }
+            }
+            else
+            {
+               out[o++] = c;
+               i++;
+            }
+         }
+         segments += 1;
+
+         if (i < length)
+         {
+            out[o++] = '/';
+
+            //fold this segment into the one before it while they make up a '/**&#47;**&#47;', '/**&#47;*&#47;' or '/*&#47;**&#47;'
+            while (segments > 2 || (segments > 1 && leading))
+            {
+               int prev = start - 1;
+               while (prev > 0 && out[prev - 1] != '/')
+                  prev--;
+
+               int before = stars(out, prev, start - 1);
+               int current = stars(out, start, o - 1);
+               if (before == 2 && current > 0)
+               {
+                  o = start;
+                  break;
+               }
+               else if (before == 1 && current == 2)
+               {
+                  out[prev + 1] = '*';
+                  out[prev + 2] = '/';
+                  o = prev + 3;
+               }
+               else
+               {
+                  break;
+               }
+               segments -= 1;
+               start = prev;
+            }
          }
       }
 
-      String p = buff.toString();
-      if (path.charAt(path.length() - 1) != '/')
+      if (o == length)
       {
-         p = p.substring(0, p.length() - 1);
+         int i = 0;
+         while (i < o && out[i] == path.charAt(i))
+            i++;
+
+         if (i == o)
+            return path;
       }
+      return new String(out, 0, o);
+   }
+
+   /**
+    * @return 1 for a '*' segment, 2 for a '**' segment and 0 otherwise
+    */
+   static int stars(char[] out, int start, int end)
+   {
+      if (end - start == 1 && out[start] == '*')
+         return 1;
+
+      if (end - start == 2 && out[start] == '*' && out[start + 1] == '*')
+         return 2;
 
-      return p;
+      return 0;
    }
 
    @ApiMethod
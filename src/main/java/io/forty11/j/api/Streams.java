@@ -30,6 +30,9 @@ import java.io.Reader;
 import java.io.Writer;
 import java.net.URL;
 import java.net.URLDecoder;
+import java.nio.charset.Charset;
+
+import io.forty11.j.it.LineIt;
 
 public class Streams
 {
@@ -77,6 +80,20 @@ public class Streams
       return null;
    }
 
+   @ApiMethod
+   @Comment(value = "Iterates over the lines of the stream as they are decoded, closing it at the end")
+   public static LineIt lines(InputStream in, Charset charset)
+   {
+      return new LineIt(in, charset);
+   }
+
+   @ApiMethod
+   @Comment(value = "Iterates over the delimiter separated records of the stream as they are decoded, closing it at the end")
+   public static LineIt records(InputStream in, Charset charset, String delimiter)
+   {
+      return new LineIt(in, charset, delimiter);
+   }
+
    @ApiMethod
    @Comment(value = "Simply calls stream.flush() but throws RuntimeException instead of IOException")
    public static void flush(Flushable stream)
@@ -16,7 +16,9 @@
 package io.forty11.j.it;
 
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.Spliterator;
 
 /**
  *
@@ -25,13 +27,29 @@ import java.util.Iterator;
  */
 public class CollectionIt<E> extends It<E>
 {
-   Iterator wrapped = null;
+   Collection collection = null;
+   Iterator   wrapped    = null;
 
    public CollectionIt(Collection c)
    {
+      collection = c;
       wrapped = c.iterator();
    }
 
+   /**
+    * @return the collection's own sized Spliterator if iteration has not
+    *         started yet, after which this It is used up like any other
+    */
+   public Spliterator<E> spliterator()
+   {
+      if (started)
+         return super.spliterator();
+
+      started = true;
+      wrapped = Collections.emptyIterator();
+      return collection.spliterator();
+   }
+
    public E findNext()
    {
       return wrapped.hasNext() ? (E) wrapped.next() : null;
@@ -15,54 +15,389 @@
  */
 package io.forty11.j.it;
 
+import java.io.Closeable;
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Spliterator;
+import java.util.function.Consumer;
 
-public class FileIt extends It<File>
+/**
+ * Lazily walks every file below a directory, depth first.
+ * <p>
+ * Nothing is listed until the first call to hasNext().  Only the
+ * directories between the root and the current file are held open, one
+ * level each, so memory grows with the depth of the tree rather than the
+ * number of files in it.
+ * <p>
+ * By default each directory is read and sorted in one go, keeping the
+ * order of listDir(), which means a level holds the names of one
+ * directory.  With setSorted(false) each level is just an open
+ * DirectoryStream and memory is bounded by depth alone.
+ * <p>
+ * A FileIt that is not read to the end must be closed, directly or by
+ * closing its stream(), or the directory streams it holds open leak.
+ * Closing it also closes the parts a parallelStream() split off.
+ * <p>
+ * The Spliterator splits by directory, handing the unvisited rest of the
+ * tree nearest the root to another thread, so a parallelStream() walks
+ * separate subtrees on each core.
+ * <p>
+ * Links to directories are followed unless they lead back to a directory
+ * already being walked.
+ */
+public class FileIt extends It<File> implements Closeable
 {
-   File       root  = null;
-   List<File> files = new ArrayList();
+   File         root   = null;
+   boolean      sorted = true;
+   Deque<Level> stack  = null;
+
+   //every FileIt split off the original, shared by all of them
+   List<FileIt> splits = null;
 
    public FileIt(File file)
    {
       this.root = file;
-      files.addAll(listDir(file));
+   }
+
+   /**
+    * @param sorted - false to stream each directory in file system order
+    */
+   public FileIt setSorted(boolean sorted)
+   {
+      this.sorted = sorted;
+      return this;
    }
 
    public File findNext()
    {
-      while (files.size() > 0)
+      if (stack == null)
+         start();
+
+      while (!stack.isEmpty())
       {
-         File file = files.remove(0);
-         if (file.isDirectory())
+         Path path = stack.peek().next();
+         if (path == null)
+         {
+            stack.pop().close();
+            continue;
+         }
+
+         try
          {
-            files.addAll(listDir(file));
+            BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+            if (attrs.isDirectory())
+            {
+               if (!isCycle(attrs))
+                  push(path, attrs);
+               continue;
+            }
          }
-         else
+         catch (IOException ex)
          {
-            return file;
+            //a broken link, returned as a file just like File.isDirectory() would
          }
+         return path.toFile();
       }
       return null;
    }
 
-   public static List<File> listDir(File dir)
+   /**
+    * Releases any directory streams still open, including those of
+    * every FileIt split off this one.
+    */
+   public void close()
    {
-      File[] children = dir.listFiles();
+      release();
+      if (splits != null)
+      {
+         synchronized (splits)
+         {
+            for (FileIt split : splits)
+               split.release();
+         }
+      }
+   }
 
-      if (children != null)
+   void release()
+   {
+      next = null;
+      while (stack != null && !stack.isEmpty())
       {
-         List childList = Arrays.asList(children);
-         Collections.sort(childList);
-         return childList;
+         stack.pop().close();
+      }
+   }
+
+   public Spliterator<File> spliterator()
+   {
+      return new Split(this);
+   }
+
+   protected int characteristics()
+   {
+      return Spliterator.NONNULL | Spliterator.DISTINCT | (sorted ? Spliterator.ORDERED : 0);
+   }
+
+   void start()
+   {
+      stack = new ArrayDeque();
+
+      BasicFileAttributes attrs = null;
+      try
+      {
+         attrs = Files.readAttributes(root.toPath(), BasicFileAttributes.class);
+      }
+      catch (IOException ex)
+      {
+         //listed below as empty
+      }
+      push(root.toPath(), attrs);
+   }
+
+   void push(Path dir, BasicFileAttributes attrs)
+   {
+      if (sorted)
+      {
+         stack.push(new Level(list(dir), null, attrs));
+      }
+      else
+      {
+         try
+         {
+            DirectoryStream<Path> stream = Files.newDirectoryStream(dir);
+            stack.push(new Level(null, stream, attrs));
+         }
+         catch (IOException ex)
+         {
+            //same as File.listFiles() returning null
+         }
+      }
+   }
+
+   boolean isCycle(BasicFileAttributes attrs)
+   {
+      Object key = attrs.fileKey();
+      for (Level level : stack)
+      {
+         if (key != null && level.attrs != null && key.equals(level.attrs.fileKey()))
+            return true;
+      }
+      return false;
+   }
+
+   /**
+    * Splits off everything this walk would return before the unvisited
+    * children of the level nearest the root, or the first half of the
+    * only level left.
+    *
+    * @return a FileIt walking the split off prefix or null if there is
+    *         not enough left to split
+    */
+   FileIt split()
+   {
+      if (next != null)
+         return null;
+
+      if (stack == null)
+         start();
+
+      List<Level> levels = new ArrayList(stack);
+      Collections.reverse(levels);
+
+      int first = 0;
+      while (first < levels.size() && levels.get(first).remaining() == 0)
+         first++;
+
+      int top = levels.size() - 1;
+      if (first > top || (first == top && levels.get(top).remaining() < 2))
+         return null;
+
+      FileIt prefix = new FileIt(root);
+      prefix.sorted = sorted;
+      prefix.stack = new ArrayDeque();
+
+      if (splits == null)
+         splits = Collections.synchronizedList(new ArrayList());
+      prefix.splits = splits;
+      splits.add(prefix);
+
+      if (first < top)
+      {
+         //the levels above the first with children left come before them
+         for (int i = 0; i <= first; i++)
+            prefix.stack.push(levels.get(i).ancestor());
+
+         for (int i = first + 1; i <= top; i++)
+         {
+            prefix.stack.push(levels.get(i));
+            stack.pop();
+         }
       }
       else
       {
-         return Collections.EMPTY_LIST;
+         Level level = levels.get(top);
+         int half = level.index + level.remaining() / 2;
+
+         for (int i = 0; i < top; i++)
+            prefix.stack.push(levels.get(i).ancestor());
+
+         prefix.stack.push(new Level(level.children.subList(level.index, half), null, level.attrs));
+         level.index = half;
       }
+      return prefix;
    }
 
+   public static List<File> listDir(File dir)
+   {
+      List<File> children = new ArrayList();
+      for (Path path : list(dir.toPath()))
+      {
+         children.add(path.toFile());
+      }
+      return children;
+   }
+
+   /**
+    * @return the sorted children of <code>dir</code> or an empty list if
+    *         it is not a directory or can not be read
+    */
+   static List<Path> list(Path dir)
+   {
+      List<Path> children = new ArrayList();
+      try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir))
+      {
+         for (Path child : stream)
+         {
+            children.add(child);
+         }
+      }
+      catch (IOException ex)
+      {
+         //same as File.listFiles() returning null
+      }
+      Collections.sort(children);
+      return children;
+   }
+
+   /**
+    * One directory being walked, either a sorted list of its children or
+    * an open stream of them.
+    */
+   static class Level
+   {
+      List<Path>            children = null;
+      int                   index    = 0;
+      DirectoryStream<Path> stream   = null;
+      Iterator<Path>        it       = null;
+      BasicFileAttributes   attrs    = null;
+
+      Level(List<Path> children, DirectoryStream<Path> stream, BasicFileAttributes attrs)
+      {
+         this.children = children;
+         this.stream = stream;
+         this.it = stream == null ? null : stream.iterator();
+         this.attrs = attrs;
+      }
+
+      Path next()
+      {
+         if (children != null)
+            return index < children.size() ? children.get(index++) : null;
+
+         try
+         {
+            return it.hasNext() ? it.next() : null;
+         }
+         catch (DirectoryIteratorException ex)
+         {
+            //same as the directory ending early
+            return null;
+         }
+      }
+
+      /**
+       * @return how many children are left or -1 if that is unknown
+       */
+      int remaining()
+      {
+         if (children != null)
+            return children.size() - index;
+
+         try
+         {
+            return it.hasNext() ? -1 : 0;
+         }
+         catch (DirectoryIteratorException ex)
+         {
+            return 0;
+         }
+      }
+
+      /**
+       * @return an empty level for the same directory, kept so cycles
+       *         through it are still caught
+       */
+      Level ancestor()
+      {
+         return new Level(Collections.EMPTY_LIST, null, attrs);
+      }
+
+      void close()
+      {
+         try
+         {
+            if (stream != null)
+               stream.close();
+         }
+         catch (IOException ex)
+         {
+            //nothing more is read from it either way
+         }
+      }
+   }
+
+   static class Split implements Spliterator<File>
+   {
+      FileIt it = null;
+
+      Split(FileIt it)
+      {
+         this.it = it;
+      }
+
+      public boolean tryAdvance(Consumer<? super File> action)
+      {
+         if (!it.hasNext())
+            return false;
+
+         action.accept(it.next());
+         return true;
+      }
+
+      public Spliterator<File> trySplit()
+      {
+         FileIt prefix = it.split();
+         return prefix == null ? null : new Split(prefix);
+      }
+
+      public long estimateSize()
+      {
+         return Long.MAX_VALUE;
+      }
+
+      public int characteristics()
+      {
+         return it.characteristics();
+      }
+   }
 }
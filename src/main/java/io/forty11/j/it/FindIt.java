@@ -15,32 +15,41 @@
  */
 package io.forty11.j.it;
 
+import java.io.Closeable;
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.DosFileAttributes;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.Iterator;
 import java.util.List;
-import java.util.regex.Pattern;
+import java.util.Spliterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountedCompleter;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import io.forty11.j.api.Files;
 import io.forty11.j.api.Lang;
 import io.forty11.j.api.PathSet;
-import io.forty11.j.api.PathSet.Path;
 import io.forty11.j.api.Paths;
 import io.forty11.j.api.Strings;
+import io.forty11.j.utils.FileIndex;
+import io.forty11.j.utils.Glob;
 
 /**
- * TODO: matching with ** performs extra matches.  As an optimization,
- * add a shortcircuit * match against the ramaining chunk regex once ** is hit
- *
- * TODO: cache the compiled regex Pattern objects
- *
  * TODO: allow passing an optional base file to be used instead of the
  * working dir for relative matches
  *
- * TODO: add support for programmer directed search pruning based on Iterator.remove()
- *
  * TODO: supercede class Ls
  */
 /**
@@ -68,8 +77,17 @@ import io.forty11.j.api.Strings;
  * @return an iteraotr of <code>File</code> objects whose paths match
  *          one or more of the <code>pattern</code> expressions
  */
-public class FindIt extends It<File>
+public class FindIt extends It<File> implements Closeable
 {
+   static final File        DONE           = new File("");
+
+   //how far a parallel search may run ahead of the consumer, in
+   //unsorted matches or sorted directory listings
+   static final int         AHEAD          = 1024;
+
+   //on windows hidden is a file attribute, not a naming convention
+   static final boolean     DOS            = System.getProperty("os.name").toLowerCase().startsWith("windows");
+   static final Class       ATTRIBUTES     = DOS ? DosFileAttributes.class : BasicFileAttributes.class;
 
    // Options ----------------
 
@@ -79,6 +97,11 @@ public class FindIt extends It<File>
 
    protected boolean        includeHidden  = false;
 
+   protected boolean        parallel       = false;
+   protected boolean        sorted         = true;
+
+   protected FileIndex      index          = null;
+
    protected String[]       includes       = null;
    protected String[]       excludes       = null;
 
@@ -86,10 +109,24 @@ public class FindIt extends It<File>
 
    private PathSet          paths          = null;
 
-   private int              patternIndex   = 0;
+   //excludes with '**&#47;' able to match no directories, see setExcludes()
+   private Glob             excluded       = null;
+
+   //sequential search
+   private Deque<Node>      stack          = null;
+   private Path             last           = null;
+   private Path             pruned         = null;
+
+   //parallel search, on its own pool because listing directories blocks
+   private ForkJoinPool     pool           = null;
+   private volatile boolean closed         = false;
 
-   private int              chunkIndex     = -1;
-   private Iterator<File>[] chunkStack     = null;
+   //parallel unsorted search
+   private BlockingQueue    found          = null;
+
+   //parallel sorted search
+   private Deque<Iterator>  segments       = null;
+   private AtomicInteger    ahead          = null;
 
    public FindIt(String... includes)
    {
@@ -113,65 +150,637 @@ public class FindIt extends It<File>
       return paths;
    }
 
+   /**
+    * Replaces the includes and excludes, see setExcludes() for how the
+    * excludes are matched.
+    */
    public void setPaths(PathSet paths)
    {
       this.paths = paths;
    }
 
+   protected int characteristics()
+   {
+      return Spliterator.NONNULL | (!parallel || sorted ? Spliterator.ORDERED : 0);
+   }
+
    protected File findNext()
    {
-      List<Path> includePaths = getPaths().getIncludes();
-      int length = includePaths.size();
+      if (closed)
+         return null;
+
+      if (!parallel)
+         return findSequential();
+      else if (sorted)
+         return findSorted();
+      else
+         return findUnsorted();
+   }
+
+   List<Node> roots()
+   {
+      List<PathSet.Path> excludes = getPaths().getExcludes();
+      if (excludes.size() > 0)
+      {
+         String[] patterns = new String[excludes.size()];
+         for (int i = 0; i < patterns.length; i++)
+         {
+            patterns[i] = excludes.get(i).getPath();
+         }
+         excluded = new Glob(true, patterns);
+      }
+
+      List<Node> roots = new ArrayList();
+      for (PathSet.Path pattern : getPaths().getIncludes())
+      {
+         roots.add(new Node(pattern, new File(baseDir).toPath(), null, close(pattern, 0), excluded != null ? excluded.start() : null));
+      }
+      return roots;
+   }
+
+   /**
+    * Ends the search.  A parallel search that is not read to the end
+    * must be closed to stop its pool.
+    */
+   public void close()
+   {
+      closed = true;
+      next = null;
+      if (pool != null)
+         pool.shutdownNow();
+   }
+
+   public File next()
+   {
+      File file = super.next();
+      last = file != null ? file.toPath() : null;
+      return file;
+   }
+
+   /**
+    * Prunes the search, skipping everything below the directory last
+    * returned by next().  Nothing is deleted.
+    */
+   public void remove()
+   {
+      if (parallel)
+         throw new UnsupportedOperationException("remove() is only supported by a sequential search");
+
+      if (last == null)
+         throw new IllegalStateException("remove() must follow next()");
+
+      pruned = last;
+      last = null;
+
+      //hasNext() may have already found a match below it
+      if (next != null && next.toPath().startsWith(pruned))
+         next = null;
+   }
+
+   File findSequential()
+   {
+      if (stack == null)
+      {
+         stack = new ArrayDeque();
+         List<Node> roots = roots();
+         for (int i = roots.size() - 1; i >= 0; i--)
+            stack.push(roots.get(i));
+      }
+
+      List<Node> next = new ArrayList();
+      while (!stack.isEmpty())
+      {
+         Node node = stack.pop();
+
+         //the pruned subtree is on the top of the stack
+         if (pruned != null)
+         {
+            if (node.file.startsWith(pruned))
+               continue;
+
+            pruned = null;
+         }
+
+         if (node.isMatch())
+            return node.file.toFile();
+
+         next.clear();
+         expand(node, next);
+
+         //pushed in reverse so they pop off in sorted order
+         for (int i = next.size() - 1; i >= 0; i--)
+            stack.push(next.get(i));
+      }
+      return null;
+   }
 
-      File file = null;
+   File findUnsorted()
+   {
+      if (found == null)
+      {
+         found = new ArrayBlockingQueue(AHEAD);
+         pool = newPool();
+         pool.execute(new Search(null, null));
+      }
 
-      while (patternIndex < length)
+      try
       {
-         if (chunkStack == null)
+         Object next = found.take();
+         if (next == DONE)
+         {
+            //leave the marker for any later hasNext() calls
+            found.offer(DONE);
+            pool.shutdown();
+            return null;
+         }
+         if (next instanceof Throwable)
          {
-            chunkStack = new Iterator[includePaths.get(patternIndex).getChunks().length];
-            file = new File(baseDir);
+            close();
+            Lang.rethrow((Throwable) next);
          }
+         return (File) next;
+      }
+      catch (InterruptedException ex)
+      {
+         close();
+         Lang.rethrow(ex);
+      }
+      return null;
+   }
 
-         if (file != null)
+   /**
+    * Waits for room in the queue, which is what keeps an unsorted
+    * search from running ahead of the consumer, unless it is closed.
+    */
+   void put(Object result)
+   {
+      try
+      {
+         while (!closed && !found.offer(result, 100, TimeUnit.MILLISECONDS))
          {
-            if (chunkIndex == chunkStack.length - 1)
+            //still full
+         }
+      }
+      catch (InterruptedException ex)
+      {
+         //closed
+      }
+   }
+
+   File findSorted()
+   {
+      if (segments == null)
+      {
+         segments = new ArrayDeque();
+         ahead = new AtomicInteger();
+         pool = newPool();
+
+         List<Listing> listings = new ArrayList();
+         for (Node root : roots())
+         {
+            Listing listing = new Listing(root);
+            listing.readAhead();
+            listings.add(listing);
+         }
+         segments.push(listings.iterator());
+      }
+
+      try
+      {
+         while (!segments.isEmpty())
+         {
+            Iterator it = segments.peek();
+            if (!it.hasNext())
             {
-               return file;
+               segments.pop();
+               continue;
+            }
+
+            Object next = it.next();
+            if (next instanceof File)
+               return (File) next;
+
+            //a listing the pool did not get to is listed here
+            Listing listing = (Listing) next;
+            if (listing.forked)
+            {
+               segments.push(listing.join().iterator());
+               ahead.decrementAndGet();
             }
             else
             {
-               chunkIndex += 1;
+               segments.push(listing.invoke().iterator());
+            }
+         }
+      }
+      catch (RuntimeException ex)
+      {
+         close();
+         throw ex;
+      }
 
-               String target = includePaths.get(patternIndex).getChunks()[chunkIndex];
+      pool.shutdown();
+      return null;
+   }
+
+   static ForkJoinPool newPool()
+   {
+      return new ForkJoinPool(Math.max(4, Runtime.getRuntime().availableProcessors()));
+   }
+
+   /**
+    * Matches the entries of <code>node.file</code> against each of the
+    * node's active segments, adding the nodes for the next step of the
+    * search, in sorted order, to <code>next</code>.
+    * <p>
+    * A node can have several active segments because '**' matches any
+    * number of directories.  For '**&#47;x', each directory is in '**' and
+    * in 'x' at once.  The directory is listed a single time and each
+    * child is matched against all of the active segments together.  The
+    * child gets one node with the union of the segments it moves on to, so
+    * nothing is listed or returned twice, however many '**' the pattern
+    * has.  When '**' is the last segment every file below it matches, or
+    * every directory for '**&#47;'.
+    * <p>
+    * Literal segments step straight to the named file, without listing
+    * the directory, unless it is being listed anyway.
+    * <p>
+    * Entries are only stat'ed when a segment needs to know whether they
+    * are directories or links, and then only once.
+    * <p>
+    * Excludes are matched against the path relative to the base dir as
+    * the search descends.  An excluded entry is skipped along with its
+    * subtree, as is any directory below which every path is excluded,
+    * e.g. '**&#47;node_modules/**', so it is never listed.
+    */
+   void expand(Node node, List<Node> next)
+   {
+      PathSet.Path pattern = node.pattern;
+      String[] segments = pattern.getSegments();
+
+      boolean list = false;
+      boolean needStat = !followSymLinks || (DOS && !includeHidden);
+      for (int i : node.segments)
+      {
+         list |= Strings.isWildcard(segments[i]);
+         needStat |= isRecurse(segments[i]) || segments[i].endsWith("/");
+      }
 
-               Iterator it = listFiles(file, target);
-               chunkStack[chunkIndex] = it;
-               file = null;
+      if (!list)
+      {
+         for (int i : node.segments)
+         {
+            resolve(node, i, next);
+         }
+         return;
+      }
+
+      if (node.attrs != null && !node.attrs.isDirectory())
+         return;
+
+      List<Path> children = new ArrayList();
+      List<FileIndex.Entry> entries = index != null ? index.list(node.file) : null;
+      if (entries != null)
+      {
+         for (FileIndex.Entry entry : entries)
+         {
+            children.add(node.file.resolve(entry.getName()));
+         }
+      }
+      else
+      {
+         try (DirectoryStream<Path> stream = java.nio.file.Files.newDirectoryStream(node.file))
+         {
+            for (Path child : stream)
+            {
+               children.add(child);
             }
          }
-         else
+         catch (IOException ex)
+         {
+            //not a directory or not readable, same as File.listFiles() returning null
+            return;
+         }
+         Collections.sort(children);
+      }
+
+      boolean[] marks = new boolean[segments.length];
+      int[] active = new int[segments.length];
+
+      for (int c = 0; c < children.size(); c++)
+      {
+         Path child = children.get(c);
+         String name = child.getFileName().toString();
+
+         if (!includeHidden && !DOS && name.startsWith("."))
+            continue;
+
+         //without a '**' the name alone can rule the child out
+         if (!needStat && !isCandidate(node, name))
+            continue;
+
+         BasicFileAttributes attrs = null;
+         if (entries != null)
          {
-            Iterator<File> it = chunkStack[chunkIndex];
-            while (chunkIndex > 0 && (it == null || !it.hasNext()))
+            FileIndex.Entry entry = entries.get(c);
+            if ((!includeHidden && entry.isHidden()) || (!followSymLinks && entry.isSymbolicLink()))
+               continue;
+
+            //the index does not follow links, so they are read from the
+            //file system the same way the plain walk reads them
+            attrs = entry.isSymbolicLink() ? lstat(child) : entry;
+            if (attrs == null)
+               continue;
+         }
+         else if (needStat)
+         {
+            attrs = lstat(child);
+            if (attrs == null)
+               continue;
+         }
+
+         Glob.State state = node.state;
+         if (state != null)
+         {
+            state = excluded.next(state, name);
+            if (state.matches() != 0)
+               continue;
+
+            //a dir excluded by a trailing '/' needs the stat
+            if (attrs == null && excluded.next(state, '/').matches() != 0)
             {
-               it = chunkStack[--chunkIndex];
+               attrs = lstat(child);
+               if (attrs == null)
+                  continue;
             }
 
-            if (it != null && it.hasNext())
+            state = isExcluded(state, attrs);
+            if (state == null)
+               continue;
+         }
+
+         boolean dir = attrs != null && attrs.isDirectory();
+         boolean match = false;
+         int count = 0;
+
+         for (int i : node.segments)
+         {
+            String segment = segments[i];
+            boolean last = i == segments.length - 1;
+
+            if (isRecurse(segment))
             {
-               file = it.next();
+               if (dir)
+                  count = close(segments, i, marks, active, count);
+
+               //'**' returns the files below, '**/' the directories
+               if (last && dir == segment.endsWith("/"))
+                  match = true;
             }
-            else
+            else if (Strings.isWildcard(segment) ? pattern.matches(i, name) : name.equals(segment) || segment.equals(name + "/"))
             {
-               chunkIndex = -1;
-               patternIndex++;
-               chunkStack = null;
+               if (segment.endsWith("/") && !dir)
+                  continue;
+
+               if (last)
+                  match = true;
+               else
+                  count = close(segments, i + 1, marks, active, count);
             }
          }
+
+         if (match)
+            next.add(new Node(pattern, child, attrs, null, null));
+
+         //everything below is excluded
+         boolean descend = count > 0 && (state == null || state.all() == 0);
+
+         if (descend && (attrs == null || dir) && !(attrs != null && isCycle(node, attrs)))
+            next.add(new Node(node, child, attrs, segments(marks, active, count), state));
+         else
+            segments(marks, active, count);
       }
+   }
 
-      return null;
+   /**
+    * Steps straight to the file named by the run of literal segments
+    * starting at <code>index</code>.
+    */
+   void resolve(Node node, int index, List<Node> next)
+   {
+      String[] segments = node.pattern.getSegments();
+
+      StringBuilder buff = new StringBuilder(segments[index]);
+      while (index < segments.length - 1 && !Strings.isWildcard(segments[index + 1]))
+      {
+         index += 1;
+         if (buff.charAt(buff.length() - 1) != '/')
+            buff.append('/');
+         buff.append(segments[index]);
+      }
+      String segment = buff.toString();
+
+      Path child = segment.equals("/") ? new File("/").toPath() : node.file.resolve(segment);
+      BasicFileAttributes attrs = stat(child);
+      if (attrs == null)
+      {
+         // this was added as a fix for windows os (tcollins - 8-11-2008)
+         child = new File(segment).toPath();
+         attrs = stat(child);
+      }
+      if (attrs == null)
+         return;
+
+      Glob.State state = node.state;
+      if (state != null)
+      {
+         state = excluded.next(state, segment.endsWith("/") ? segment.substring(0, segment.length() - 1) : segment);
+         if (state.matches() != 0)
+            return;
+
+         state = isExcluded(state, attrs);
+         if (state == null)
+            return;
+      }
+
+      if (index == segments.length - 1)
+         next.add(new Node(node.pattern, child, attrs, null, null));
+      else if (state == null || state.all() == 0)
+         next.add(new Node(node.pattern, child, attrs, close(node.pattern, index + 1), state));
+   }
+
+   /**
+    * @return true if <code>name</code> matches one of the node's
+    *         wildcard segments, or folded literal segments
+    */
+   boolean isCandidate(Node node, String name)
+   {
+      String[] segments = node.pattern.getSegments();
+      for (int i : node.segments)
+      {
+         String segment = segments[i];
+         if (Strings.isWildcard(segment) ? node.pattern.matches(i, name) : name.equals(segment))
+            return true;
+      }
+      return false;
+   }
+
+   static boolean isRecurse(String segment)
+   {
+      return segment.equals("**") || segment.equals("**/");
+   }
+
+   /**
+    * Adds segment <code>index</code> to the active segments, along with the
+    * segment after it if it is a '**' that could match no directories.
+    */
+   static int close(String[] segments, int index, boolean[] marks, int[] active, int count)
+   {
+      while (index < segments.length && !marks[index])
+      {
+         marks[index] = true;
+         active[count++] = index;
+
+         if (!isRecurse(segments[index]) || index == segments.length - 1)
+            break;
+
+         index += 1;
+      }
+      return count;
+   }
+
+   static int[] close(PathSet.Path pattern, int index)
+   {
+      String[] segments = pattern.getSegments();
+      boolean[] marks = new boolean[segments.length];
+      int[] active = new int[segments.length];
+      return segments(marks, active, close(segments, index, marks, active, 0));
+   }
+
+   /**
+    * @return the first <code>count</code> active segments, in order,
+    *         clearing their marks
+    */
+   static int[] segments(boolean[] marks, int[] active, int count)
+   {
+      int[] segments = new int[count];
+      for (int i = 0; i < count; i++)
+      {
+         segments[i] = active[i];
+         marks[active[i]] = false;
+      }
+      Arrays.sort(segments);
+      return segments;
+   }
+
+   /**
+    * @param state - the exclude state for an entry's path
+    * @return the exclude state for the entry's path followed by a '/',
+    *         ready for the names of its children, or null if the entry
+    *         is a directory excluded by a pattern ending in '/'
+    */
+   Glob.State isExcluded(Glob.State state, BasicFileAttributes attrs)
+   {
+      state = excluded.next(state, '/');
+      if (state.matches() != 0 && attrs != null && attrs.isDirectory())
+         return null;
+
+      return state;
+   }
+
+   /**
+    * Reads the attributes of <code>file</code> following links.
+    *
+    * @return null if <code>file</code> does not exist
+    */
+   BasicFileAttributes stat(Path file)
+   {
+      try
+      {
+         if (index != null)
+         {
+            BasicFileAttributes attrs = index.get(file);
+            if (attrs != null && !attrs.isSymbolicLink())
+               return attrs;
+         }
+
+         return java.nio.file.Files.readAttributes(file, BasicFileAttributes.class);
+      }
+      catch (IOException ex)
+      {
+         return null;
+      }
+   }
+
+   /**
+    * Reads the attributes of a directory entry with a single call,
+    * only following it if it is a symbolic link that should be
+    * followed.
+    *
+    * @return null if <code>file</code> is hidden, is a link that should
+    *         not be followed, or can not be read
+    */
+   BasicFileAttributes lstat(Path file)
+   {
+      try
+      {
+         BasicFileAttributes attrs = java.nio.file.Files.readAttributes(file, ATTRIBUTES, LinkOption.NOFOLLOW_LINKS);
+
+         if (DOS && !includeHidden && ((DosFileAttributes) attrs).isHidden())
+            return null;
+
+         if (attrs.isSymbolicLink())
+         {
+            if (!followSymLinks)
+               return null;
+
+            //a broken link is returned as a file just like File.isDirectory() would
+            BasicFileAttributes target = stat(file);
+            if (target != null)
+               attrs = target;
+         }
+         return attrs;
+      }
+      catch (IOException ex)
+      {
+         return null;
+      }
+   }
+
+   /**
+    * @return true if <code>attrs</code> is a directory already being
+    *         searched by '**' above <code>node</code>, reached again
+    *         through a symbolic link
+    */
+   boolean isCycle(Node node, BasicFileAttributes attrs)
+   {
+      Object key = attrs.fileKey();
+      for (Node parent = node; key != null && parent != null; parent = parent.parent)
+      {
+         if (parent.attrs != null && key.equals(fileKey(parent)))
+            return true;
+      }
+      return false;
+   }
+
+   /**
+    * @return the file key of a directory being searched, read from the
+    *         file system if its attributes came from the index, which
+    *         does not record them
+    */
+   Object fileKey(Node node)
+   {
+      if (!(node.attrs instanceof FileIndex.Entry))
+         return node.attrs.fileKey();
+
+      try
+      {
+         return java.nio.file.Files.readAttributes(node.file, BasicFileAttributes.class).fileKey();
+      }
+      catch (IOException ex)
+      {
+         return null;
+      }
    }
 
    public Iterator<File> listFiles(final File file, final String wildcard)
@@ -200,78 +809,173 @@ public class FindIt extends It<File>
       }
       else
       {
-         final boolean recurse = "**".equals(wildcard);
-         final boolean dirsOnly = wildcard != null && wildcard.endsWith("/");
-         final Pattern regex = wildcard != null ? Pattern.compile(Strings.wildcardToRegex(wildcard)) : null;
+         List<File> matches = new ArrayList();
+         List<Node> next = new ArrayList();
+         Deque<Node> stack = new ArrayDeque();
+         PathSet.Path pattern = new PathSet.Path(wildcard);
+         stack.push(new Node(pattern, file.toPath(), null, close(pattern, 0), null));
+         while (!stack.isEmpty())
+         {
+            Node node = stack.pop();
+            if (node.isMatch())
+            {
+               matches.add(node.file.toFile());
+               continue;
+            }
+            next.clear();
+            expand(node, next);
+            for (int i = next.size() - 1; i >= 0; i--)
+               stack.push(next.get(i));
+         }
+         return matches.iterator();
+      }
+   }
+
+   /**
+    * One step of a search.  Either <code>file</code> matches the whole
+    * <code>pattern</code>, or <code>file</code> is a directory that has
+    * matched up to each of the active <code>segments</code>.
+    */
+   static class Node
+   {
+      PathSet.Path        pattern = null;
+      Path                file    = null;
+      BasicFileAttributes attrs   = null;
+      int[]               segments  = null;
+
+      //the exclude state for file's path followed by a '/'
+      Glob.State          state   = null;
+
+      //the directory this one was listed from
+      Node                parent  = null;
+
+      Node(PathSet.Path pattern, Path file, BasicFileAttributes attrs, int[] segments, Glob.State state)
+      {
+         this.pattern = pattern;
+         this.file = file;
+         this.attrs = attrs;
+         this.segments = segments;
+         this.state = state;
+      }
+
+      Node(Node parent, Path file, BasicFileAttributes attrs, int[] segments, Glob.State state)
+      {
+         this(parent.pattern, file, attrs, segments, state);
+         this.parent = parent;
+      }
+
+      boolean isMatch()
+      {
+         return segments == null;
+      }
+   }
+
+   /**
+    * Unsorted parallel search.  Matches are handed to the consumer as
+    * soon as they are found and each directory below the node is forked
+    * off as its own subtask.  The root, with a null node, forks the
+    * include roots and signals DONE once every subtask has completed.
+    * A failure is handed to the consumer in place of a match.
+    */
+   class Search extends CountedCompleter<Void>
+   {
+      static final long serialVersionUID = 1L;
 
-         final List<File> start = new ArrayList();
+      Node node = null;
 
-         if (file.isDirectory())
+      Search(Search parent, Node node)
+      {
+         super(parent);
+         this.node = node;
+      }
+
+      public void compute()
+      {
+         try
          {
-            File[] arr = file.listFiles();
-            for (int i = 0; arr != null && i < arr.length; i++)
+            List<Node> next = new ArrayList();
+            if (node == null)
+               next.addAll(roots());
+            else if (!closed)
+               expand(node, next);
+
+            for (Node child : next)
             {
-               start.add(arr[i]);
+               if (child.isMatch())
+               {
+                  put(child.file.toFile());
+               }
+               else
+               {
+                  addToPendingCount(1);
+                  new Search(this, child).fork();
+               }
             }
-            Collections.sort(start);
          }
-         else
+         catch (Throwable ex)
          {
-            start.add(file);
+            put(ex);
          }
+         tryComplete();
+      }
 
-         return new It<File>()
-            {
-               List<File> children = start;
+      public void onCompletion(CountedCompleter<?> caller)
+      {
+         if (getCompleter() == null)
+            put(DONE);
+      }
+   }
 
-               public File findNext()
-               {
-                  File file = null;
-
-                  if (children.size() > 0)
-                  {
-                     do
-                     {
-                        try
-                        {
-                           file = children.remove(0);
-
-                           if (file != null && (!includeHidden && file.isHidden()))
-                           {
-                              file = null;
-                           }
-
-                           if (file != null && !followSymLinks && Files.isLink(file))
-                           {
-                              file = null;
-                           }
-
-                           if (file != null && file.isDirectory() && recurse)
-                           {
-                              children.addAll(0, Lang.asList(Files.listFiles(file)));
-                           }
-
-                           if (file != null && dirsOnly && !file.isDirectory())
-                           {
-                              file = null;
-                           }
-
-                           if (file != null && regex != null && !regex.matcher(file.getName()).matches())
-                           {
-                              file = null;
-                           }
-                        }
-                        catch (Exception ex)
-                        {
-                           file = null;
-                           ex.printStackTrace();
-                        }
-                     }
-                     while (children.size() > 0 && file == null);
-                  }
-                  return file;
-               }
-            };
+   /**
+    * Sorted parallel search.  Lists a single node, returning its matches
+    * in order with each subdirectory replaced by the already forked
+    * Listing that will produce its matches.  The consumer joins the
+    * Listings in order so results come out exactly as the sequential
+    * search would return them while the pool reads ahead.  Only AHEAD
+    * Listings are forked and not yet consumed at once, the consumer
+    * lists any others itself when it gets to them.
+    */
+   class Listing extends RecursiveTask<List>
+   {
+      static final long serialVersionUID = 1L;
+
+      Node    node   = null;
+      boolean forked = false;
+
+      Listing(Node node)
+      {
+         this.node = node;
+      }
+
+      void readAhead()
+      {
+         ahead.incrementAndGet();
+         forked = true;
+         pool.execute(this);
+      }
+
+      protected List compute()
+      {
+         List<Node> next = new ArrayList();
+         if (!closed)
+            expand(node, next);
+
+         List segment = new ArrayList(next.size());
+         for (Node child : next)
+         {
+            if (child.isMatch())
+            {
+               segment.add(child.file.toFile());
+            }
+            else
+            {
+               Listing listing = new Listing(child);
+               if (ahead.get() < AHEAD)
+                  listing.readAhead();
+               segment.add(listing);
+            }
+         }
+         return segment;
       }
    }
 
@@ -296,16 +1000,57 @@ public class FindIt extends It<File>
       this.baseDir = Paths.path(new File(baseDir));
    }
 
+   /**
+    * Reads directories from <code>index</code>, instead of listing them,
+    * wherever the search is below its root.  The index is only a cache,
+    * the results are the same without it.  Symbolic links, which the
+    * index does not follow, are read from the file system.
+    */
+   public void setIndex(FileIndex index)
+   {
+      this.index = index;
+   }
+
    public void setHidden(boolean includeHidden)
    {
       this.includeHidden = includeHidden;
    }
 
+   /**
+    * Splits the search across a ForkJoinPool of its own, each directory
+    * being listed by its own task.  The pool stays at most AHEAD matches,
+    * or directories when sorted, ahead of the consumer.  close() the
+    * search if you stop reading it early.
+    */
+   public void setParallel(boolean parallel)
+   {
+      this.parallel = parallel;
+   }
+
+   /**
+    * When searching in parallel, whether matches must come back in the
+    * same sorted order as a sequential search.  Sorted results are only
+    * released in order, so the pool holds the listings it has read ahead
+    * of the consumer in memory.  Unsorted results are released as found.
+    */
+   public void setSorted(boolean sorted)
+   {
+      this.sorted = sorted;
+   }
+
    public void setIncludes(String... includes)
    {
       this.includes = includes;
    }
 
+   /**
+    * Excludes are matched against each path relative to the base dir as
+    * the search walks it, and two rules differ from PathSet.excluded(),
+    * its Glob and FileWatcher.  A '**&#47;' can match no directories, so
+    * '**&#47;node_modules/**' also excludes a top-level node_modules, and
+    * an exclude ending in '/' only excludes directories.  The excludes
+    * of a PathSet given to setPaths() are matched the same way.
+    */
    public void setExcludes(String... excludes)
    {
       this.excludes = excludes;
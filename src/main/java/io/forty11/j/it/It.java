@@ -15,11 +15,28 @@
  */
 package io.forty11.j.it;
 
+import java.io.Closeable;
 import java.util.Iterator;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import io.forty11.j.api.Lang;
 
 /**
  * Utility base class to make it easier to program simple typed
  * iterator/iterables.
+ * <p>
+ * Every It can also be streamed.  By default the Spliterator is unsized
+ * and splits by handing out batches of elements read from findNext(),
+ * which is all a purely sequential source can do.  Subclasses with a
+ * source that can be partitioned, like a directory tree or a collection,
+ * override spliterator() to split it properly.
+ * <p>
+ * Closing the stream of an It that is Closeable closes the It, so a
+ * stream that is not read to the end, e.g. by findFirst(), releases the
+ * It's resources when it is used in a try-with-resources block.
  *
  * @author Wells Burke
  */
@@ -42,6 +59,43 @@ public abstract class It<E> implements Iterator<E>, Iterable<E>
       }
    }
 
+   public Spliterator<E> spliterator()
+   {
+      return Spliterators.spliteratorUnknownSize(this, characteristics());
+   }
+
+   /**
+    * @return the Spliterator characteristics of the elements this returns
+    */
+   protected int characteristics()
+   {
+      return Spliterator.ORDERED | Spliterator.NONNULL;
+   }
+
+   public Stream<E> stream()
+   {
+      return onClose(StreamSupport.stream(spliterator(), false));
+   }
+
+   public Stream<E> parallelStream()
+   {
+      return onClose(StreamSupport.stream(spliterator(), true));
+   }
+
+   Stream<E> onClose(Stream<E> stream)
+   {
+      if (!(this instanceof Closeable))
+         return stream;
+
+      return stream.onClose(new Runnable()
+         {
+            public void run()
+            {
+               Lang.close(It.this);
+            }
+         });
+   }
+
    public boolean hasNext()
    {
       started = true;
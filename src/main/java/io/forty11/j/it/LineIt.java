@@ -0,0 +1,188 @@
+/*
+ * Copyright 2008-2017 Wells Burke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.forty11.j.it;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+
+import io.forty11.j.api.Lang;
+
+/**
+ * Iterates over the lines, or delimited records, of a stream as it is
+ * decoded.
+ * <p>
+ * Characters are read through one reusable buffer and each line is built
+ * in one reusable StringBuilder, so memory stays the same however big the
+ * stream is, apart from the longest line.
+ * <p>
+ * Lines end with '\n', '\r' or "\r\n", like BufferedReader.readLine(),
+ * and the terminators are not returned.  A record ends with the
+ * delimiter, which is not returned either.  There is no empty last line
+ * or record when the stream ends with a terminator.
+ * <p>
+ * The stream is closed when the last line has been read, or by close()
+ * if iteration stops early.
+ */
+public class LineIt extends It<String> implements Closeable
+{
+   Reader        reader    = null;
+   String        delimiter = null;
+
+   char[]        buffer    = new char[8192];
+   int           position  = 0;
+   int           limit     = 0;
+   boolean       skipLF    = false;
+
+   StringBuilder line      = new StringBuilder();
+
+   public LineIt(InputStream in, Charset charset)
+   {
+      this(new InputStreamReader(in, charset), null);
+   }
+
+   /**
+    * @param delimiter - the string records end with
+    */
+   public LineIt(InputStream in, Charset charset, String delimiter)
+   {
+      this(new InputStreamReader(in, charset), delimiter);
+   }
+
+   /**
+    * @param delimiter - the string records end with, or null for lines
+    */
+   public LineIt(Reader reader, String delimiter)
+   {
+      if (delimiter != null && delimiter.length() == 0)
+         throw new IllegalArgumentException("The delimiter can not be empty");
+
+      this.reader = reader;
+      this.delimiter = delimiter;
+   }
+
+   protected String findNext()
+   {
+      try
+      {
+         return delimiter == null ? nextLine() : nextRecord();
+      }
+      catch (Exception ex)
+      {
+         close();
+         Lang.rethrow(ex);
+      }
+      return null;
+   }
+
+   public void close()
+   {
+      if (reader != null)
+      {
+         Lang.close(reader);
+         reader = null;
+      }
+   }
+
+   String nextLine() throws IOException
+   {
+      line.setLength(0);
+      while (fill())
+      {
+         if (skipLF)
+         {
+            skipLF = false;
+            if (buffer[position] == '\n')
+            {
+               position++;
+               continue;
+            }
+         }
+
+         int start = position;
+         while (position < limit)
+         {
+            char c = buffer[position];
+            if (c == '\n' || c == '\r')
+            {
+               line.append(buffer, start, position - start);
+               position++;
+               skipLF = c == '\r';
+               return line.toString();
+            }
+            position++;
+         }
+         line.append(buffer, start, position - start);
+      }
+      return line.length() > 0 ? line.toString() : null;
+   }
+
+   String nextRecord() throws IOException
+   {
+      line.setLength(0);
+
+      int length = delimiter.length();
+      char last = delimiter.charAt(length - 1);
+      while (fill())
+      {
+         char c = buffer[position++];
+         line.append(c);
+
+         if (c == last && line.length() >= length && endsWithDelimiter())
+         {
+            line.setLength(line.length() - length);
+            return line.toString();
+         }
+      }
+      return line.length() > 0 ? line.toString() : null;
+   }
+
+   boolean endsWithDelimiter()
+   {
+      int offset = line.length() - delimiter.length();
+      for (int i = 0; i < delimiter.length() - 1; i++)
+      {
+         if (line.charAt(offset + i) != delimiter.charAt(i))
+            return false;
+      }
+      return true;
+   }
+
+   /**
+    * @return false once there is nothing more to read
+    */
+   boolean fill() throws IOException
+   {
+      while (position >= limit)
+      {
+         if (reader == null)
+            return false;
+
+         int count = reader.read(buffer);
+         if (count < 0)
+         {
+            close();
+            return false;
+         }
+         position = 0;
+         limit = count;
+      }
+      return true;
+   }
+}
@@ -18,6 +18,8 @@ package io.forty11.j.it;
 import io.forty11.j.api.Paths;
 
 import java.util.Iterator;
+import java.util.Spliterator;
+import java.util.function.Consumer;
 
 public class PathIt extends It<String>
 {
@@ -33,4 +35,54 @@ public class PathIt extends It<String>
    {
       return wrapped.hasNext() ? Paths.path(wrapped.next()) : null;
    }
+
+   /**
+    * Splits however the wrapped It splits, if it is one.
+    */
+   @Override
+   public Spliterator<String> spliterator()
+   {
+      if (!started && wrapped instanceof It)
+         return new Split(((It) wrapped).spliterator());
+
+      return super.spliterator();
+   }
+
+   static class Split implements Spliterator<String>
+   {
+      Spliterator wrapped = null;
+
+      Split(Spliterator wrapped)
+      {
+         this.wrapped = wrapped;
+      }
+
+      public boolean tryAdvance(final Consumer<? super String> action)
+      {
+         return wrapped.tryAdvance(new Consumer()
+            {
+               public void accept(Object path)
+               {
+                  action.accept(Paths.path(path));
+               }
+            });
+      }
+
+      public Spliterator<String> trySplit()
+      {
+         Spliterator prefix = wrapped.trySplit();
+         return prefix == null ? null : new Split(prefix);
+      }
+
+      public long estimateSize()
+      {
+         return wrapped.estimateSize();
+      }
+
+      public int characteristics()
+      {
+         //paths from different objects can be the same
+         return wrapped.characteristics() & ~(Spliterator.DISTINCT | Spliterator.SORTED);
+      }
+   }
 }
@@ -22,10 +22,9 @@ import java.util.Iterator;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
-public class ZipIt implements Iterable<ZipEntry>, Iterator<ZipEntry>
+public class ZipIt extends It<ZipEntry>
 {
-   ZipInputStream zio  = null;
-   ZipEntry       next = null;
+   ZipInputStream zio = null;
 
    public ZipIt(URL url)
    {
@@ -45,24 +44,6 @@ public class ZipIt implements Iterable<ZipEntry>, Iterator<ZipEntry>
       return this;
    }
 
-   @Override
-   public boolean hasNext()
-   {
-      if (next == null)
-      {
-         next = findNext();
-      }
-      return next != null;
-   }
-
-   @Override
-   public ZipEntry next()
-   {
-      ZipEntry temp = next;
-      next = null;
-      return temp;
-   }
-
    @Override
    public void remove()
    {
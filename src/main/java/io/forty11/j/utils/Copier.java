@@ -0,0 +1,260 @@
+/*
+ * Copyright 2008-2017 Wells Burke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.forty11.j.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import io.forty11.j.api.Lang;
+import io.forty11.j.it.FileIt;
+
+/**
+ * Mirrors every file below a source directory into a destination
+ * directory.
+ * <p>
+ * The source is walked once.  Each file is handed to a bounded pool of
+ * workers, and the walk blocks while the pool's queue is full, so memory
+ * stays flat no matter how many files there are.
+ * <p>
+ * A file is skipped if the destination already has one with the same
+ * size and last modified time, to the millisecond.  With
+ * setSkipNewer(true) any destination at least as new as the source is
+ * skipped instead, whatever its size, which is the rule Files.copy() has
+ * always used.  With setHash(true) a destination of the
+ * same size is also skipped if its SHA-1 matches, even when the times
+ * differ, and gets the source's time so the next run is cheap.
+ * <p>
+ * Each file is copied with Files.transfer(), so it appears all at once
+ * with the source's last modified time.  Counters can be
+ * read with getProgress() from any thread while a copy is running.  Files
+ * that could not be copied are counted as failed and listed with their
+ * errors in Progress.failures.
+ * <p>
+ * Each call to copy() starts the counters from zero.
+ */
+public class Copier
+{
+   Path          src      = null;
+   Path          dst      = null;
+
+   int           threads  = Math.max(4, Runtime.getRuntime().availableProcessors());
+   int           queueMax = 1000;
+   boolean       hash     = false;
+   boolean       newer    = false;
+
+   LongAdder     found    = new LongAdder();
+   LongAdder     copied   = new LongAdder();
+   LongAdder     skipped  = new LongAdder();
+   LongAdder     failed   = new LongAdder();
+   LongAdder     bytes    = new LongAdder();
+   volatile long started  = 0;
+   volatile long finished = 0;
+
+   Map<File, Exception> failures = new ConcurrentHashMap();
+
+   public Copier(File src, File dst)
+   {
+      this.src = src.toPath().toAbsolutePath().normalize();
+      this.dst = dst.toPath().toAbsolutePath().normalize();
+   }
+
+   /**
+    * @param threads - the number of files copied at once
+    */
+   public Copier setThreads(int threads)
+   {
+      this.threads = Math.max(1, threads);
+      return this;
+   }
+
+   /**
+    * @param hash - true to compare content, not modified times, when the sizes match
+    */
+   public Copier setHash(boolean hash)
+   {
+      this.hash = hash;
+      return this;
+   }
+
+   /**
+    * @param newer - true to skip a destination modified at or after the
+    *                source instead of comparing sizes and times
+    */
+   public Copier setSkipNewer(boolean newer)
+   {
+      this.newer = newer;
+      return this;
+   }
+
+   /**
+    * Copies the tree, returning once every file has been copied or skipped.
+    */
+   public Progress copy()
+   {
+      Executor pool = new Executor(threads, threads, queueMax, true, "Copier");
+      found.reset();
+      copied.reset();
+      skipped.reset();
+      failed.reset();
+      bytes.reset();
+      failures.clear();
+      started = System.nanoTime();
+      finished = 0;
+      try
+      {
+         for (final File file : new FileIt(src.toFile()))
+         {
+            found.increment();
+            pool.submit(new Runnable()
+               {
+                  public void run()
+                  {
+                     copy(file.toPath());
+                  }
+               });
+         }
+      }
+      finally
+      {
+         pool.shutdown();
+         try
+         {
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+         }
+         catch (InterruptedException ex)
+         {
+            Lang.rethrow(ex);
+         }
+         finished = System.nanoTime();
+      }
+      return getProgress();
+   }
+
+   public Progress getProgress()
+   {
+      Progress progress = new Progress();
+      progress.found = found.sum();
+      progress.copied = copied.sum();
+      progress.skipped = skipped.sum();
+      progress.failed = failed.sum();
+      progress.bytes = bytes.sum();
+      progress.failures = new HashMap(failures);
+      progress.nanos = started == 0 ? 0 : (finished == 0 ? System.nanoTime() : finished) - started;
+      return progress;
+   }
+
+   void copy(Path srcFile)
+   {
+      Path dstFile = dst.resolve(src.relativize(srcFile));
+      try
+      {
+         BasicFileAttributes srcAttrs = Files.readAttributes(srcFile, BasicFileAttributes.class);
+         BasicFileAttributes dstAttrs = null;
+         try
+         {
+            dstAttrs = Files.readAttributes(dstFile, BasicFileAttributes.class);
+         }
+         catch (IOException ex)
+         {
+            //not there yet
+         }
+
+         if (newer && dstAttrs != null && dstAttrs.lastModifiedTime().toMillis() >= srcAttrs.lastModifiedTime().toMillis())
+         {
+            skipped.increment();
+            return;
+         }
+
+         if (dstAttrs != null && dstAttrs.size() == srcAttrs.size())
+         {
+            if (dstAttrs.lastModifiedTime().toMillis() == srcAttrs.lastModifiedTime().toMillis())
+            {
+               skipped.increment();
+               return;
+            }
+
+            if (hash && Arrays.equals(sha1(srcFile), sha1(dstFile)))
+            {
+               Files.setLastModifiedTime(dstFile, srcAttrs.lastModifiedTime());
+               skipped.increment();
+               return;
+            }
+         }
+
+         Files.createDirectories(dstFile.getParent());
+         bytes.add(io.forty11.j.api.Files.transfer(srcFile.toFile(), dstFile.toFile()));
+         copied.increment();
+      }
+      catch (Exception ex)
+      {
+         failures.put(srcFile.toFile(), ex);
+         failed.increment();
+      }
+   }
+
+   static byte[] sha1(Path file) throws Exception
+   {
+      MessageDigest digest = MessageDigest.getInstance("SHA-1");
+      ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+      try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ))
+      {
+         while (in.read(buffer) > 0)
+         {
+            buffer.flip();
+            digest.update(buffer);
+            buffer.clear();
+         }
+      }
+      return digest.digest();
+   }
+
+   public static class Progress
+   {
+      public long found   = 0;
+      public long copied  = 0;
+      public long skipped = 0;
+      public long failed  = 0;
+      public long bytes   = 0;
+      public long nanos   = 0;
+
+      //each source file that failed to copy and why
+      public Map<File, Exception> failures = new HashMap();
+
+      public long getBytesPerSecond()
+      {
+         return nanos == 0 ? 0 : (long) (bytes * 1000000000d / nanos);
+      }
+
+      public String toString()
+      {
+         return "found=" + found + " copied=" + copied + " skipped=" + skipped + " failed=" + failed //
+               + " bytes=" + bytes + " millis=" + TimeUnit.NANOSECONDS.toMillis(nanos) + " bytesPerSecond=" + getBytesPerSecond();
+      }
+   }
+}
@@ -15,34 +15,134 @@
  */
 package io.forty11.j.utils;
 
-import java.util.LinkedList;
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.Vector;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
 
-public class Executor
+/**
+ * A thread pool that grows from poolMin up to poolMax workers as tasks
+ * are queued.
+ * <p>
+ * Tasks submitted from outside of the pool are placed on a lock free
+ * shared inbound queue.  Tasks submitted by one of the pool's own workers
+ * are pushed onto that worker's deque.  A worker runs its own tasks newest
+ * first, then drains the inbound queue, then steals the oldest tasks from
+ * the other workers before parking.
+ * <p>
+ * Tasks can be submitted with a HIGH, NORMAL or LOW priority.  Each priority
+ * has its own inbound queue, or lane, and workers take from the lanes by
+ * weighted round robin so that a flood of LOW tasks only adds a bounded
+ * delay to HIGH ones.  Worker deques are part of the NORMAL lane.
+ * <p>
+ * No more than queueMax tasks may be waiting at one time.  What happens to
+ * a task submitted when the queue is full is decided by the
+ * {@link Saturation} policy.  By default producers block in put() until a
+ * worker takes a task and frees up room.
+ * <p>
+ * Workers above poolMin exit once they have been idle for the keep alive
+ * time.  With adaptive sizing on, a controller grows and shrinks the number
+ * of workers between poolMin and poolMax based on queue wait time and
+ * throughput instead of starting a new worker for every busy submit().
+ * <p>
+ * shutdown() stops new submissions and lets the workers drain what is
+ * already queued, shutdownNow() also hands back the queued tasks and
+ * interrupts running ones, and awaitTermination() waits for either.
+ * <p>
+ * In virtual mode there are no pooled workers, every task is run on its
+ * own virtual thread and queueMax limits how many may be in flight.
+ * <p>
+ * submit() returns a {@link Task} which is a CompletableFuture, so callers
+ * can either block in get() or chain continuations such as thenApply() or
+ * whenComplete() that run when the task finishes.  Executor also implements
+ * java.util.concurrent.Executor so it can be passed to the *Async variants.
+ * <p>
+ * Delayed and periodic tasks wait on a shared {@link TimingWheel} whose
+ * ticker thread moves them straight onto the inbound queue when they fire.
+ * <p>
+ * getStats() returns counters and wait/run time histograms that are cheap
+ * enough to always be on.  A {@link Listener} can be registered to be told
+ * about each task as it runs or is rejected.
+ */
+public class Executor implements java.util.concurrent.Executor
 {
-   int                        poolMin  = 1;
-   int                        poolMax  = 3;
+   public static final int                 HIGH         = 0;
+   public static final int                 NORMAL       = 1;
+   public static final int                 LOW          = 2;
+
+   int                                     poolMin      = 1;
+   int                                     poolMax      = 3;
+
+   long                                    queueMax     = Integer.MAX_VALUE;
+
+   ConcurrentLinkedQueue<RunnableFuture>[] lanes        = new ConcurrentLinkedQueue[]{new ConcurrentLinkedQueue(), new ConcurrentLinkedQueue(), new ConcurrentLinkedQueue()};
+   volatile int[]                          weights      = new int[]{8, 4, 1};
+   List<Worker>                            workers      = new CopyOnWriteArrayList();
+   ConcurrentLinkedDeque<Worker>           idle         = new ConcurrentLinkedDeque();
+   ThreadLocal<Worker>                     local        = new ThreadLocal();
+
+   AtomicInteger                           threads      = new AtomicInteger();
+   AtomicLong                              queued       = new AtomicLong();
+
+   ReentrantLock                           spaceLock    = new ReentrantLock();
+   Condition                               notFull      = spaceLock.newCondition();
+   Condition                               terminated   = spaceLock.newCondition();
+   volatile int                            spaceWaiters = 0;
+
+   boolean                                 daemon       = true;
+
+   String                                  poolName     = "Executor";
 
-   long                       queueMax = Integer.MAX_VALUE;
+   ThreadFactory                           virtual      = null;
+   Set<Thread>                             running      = ConcurrentHashMap.newKeySet();
 
-   LinkedList<RunnableFuture> queue    = new LinkedList();
-   Vector<Thread>             threads  = new Vector();
+   volatile boolean                        shutdown     = false;
+   long                                    delay        = 1000;
 
-   boolean                    daemon   = true;
+   volatile Listener[]                     listeners    = new Listener[0];
 
-   String                     poolName = "Executor";
+   LongAdder                               submitted    = new LongAdder();
+   LongAdder                               completed    = new LongAdder();
+   LongAdder                               failed       = new LongAdder();
+   LongAdder                               rejected     = new LongAdder();
+   LongAdder                               started      = new LongAdder();
+   LongAdder                               retired      = new LongAdder();
+   Histogram                               waitTime     = new Histogram();
+   Histogram                               runTime      = new Histogram();
+   int                                     sampleRate   = 16;
 
-   boolean                    shutdown = false;
-   long                       delay    = 1000;
+   Saturation                              saturation   = Saturation.BLOCK;
+   long                                    blockTimeout = 0;
 
-   static Timer               timer    = null;
+   long                                    keepAlive    = TimeUnit.SECONDS.toNanos(60);
+   volatile int                            target       = 3;
+   volatile boolean                        adaptive     = false;
+   long                                    targetWait   = TimeUnit.MILLISECONDS.toNanos(10);
+
+   static TimingWheel                      wheel        = null;
 
    public Executor(int poolMin, int poolMax, long queueMax)
    {
@@ -50,232 +150,1369 @@ public class Executor
    }
 
    public Executor(int poolMin, int poolMax, long queueMax, boolean daemon, String poolName)
+   {
+      this(poolMin, poolMax, queueMax, daemon, poolName, false);
+   }
+
+   /**
+    * @param virtual - run each task on its own virtual thread instead of on
+    *                  poolMin to poolMax workers.  queueMax then limits how
+    *                  many tasks may be queued or running at once.  Ignored,
+    *                  falling back to platform workers, when the JVM does not
+    *                  support virtual threads.
+    */
+   public Executor(int poolMin, int poolMax, long queueMax, boolean daemon, String poolName, boolean virtual)
    {
       this.poolMin = Math.max(this.poolMin, poolMin);
       this.poolMax = poolMax;
+      this.target = poolMax;
       this.queueMax = queueMax;
       this.daemon = daemon;
       this.poolName = poolName;
+
+      if (virtual)
+         this.virtual = virtualThreadFactory(poolName);
+   }
+
+   /**
+    * Creates an Executor for blocking tasks that runs each one on a
+    * virtual thread, allowing at most <code>queueMax</code> at a time.
+    *
+    * @param poolMax - the number of platform workers to fall back to
+    *                  when virtual threads are not available
+    * @see #Executor(int, int, long, boolean, String, boolean)
+    */
+   public static Executor newVirtualExecutor(int poolMax, long queueMax, String poolName)
+   {
+      return new Executor(1, poolMax, queueMax, true, poolName, true);
+   }
+
+   /**
+    * @return a factory for virtual threads or null if this JVM does not have them
+    */
+   static ThreadFactory virtualThreadFactory(String poolName)
+   {
+      try
+      {
+         Class builderClass = Class.forName("java.lang.Thread$Builder");
+         Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+         builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, poolName + " worker-", 0L);
+         return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+      }
+      catch (Throwable ex)
+      {
+         //pre Java 21, or a preview JVM without --enable-preview
+         return null;
+      }
+   }
+
+   public boolean isVirtual()
+   {
+      return virtual != null;
+   }
+
+   public Task submit(Runnable task)
+   {
+      return (Task) submit(new Task(task));
    }
 
-   public synchronized Future submit(final Runnable task)
+   public <V> Task<V> submit(Callable<V> task)
    {
-      return submit(new RunnableFuture()
+      return (Task<V>) submit(new Task<V>(task));
+   }
+
+   /**
+    * @param priority - HIGH, NORMAL or LOW
+    */
+   public Task submit(Runnable task, int priority)
+   {
+      Task future = new Task(task);
+      future.priority = priority;
+      return (Task) submit(future);
+   }
+
+   /**
+    * @param priority - HIGH, NORMAL or LOW
+    */
+   public <V> Task<V> submit(Callable<V> task, int priority)
+   {
+      Task<V> future = new Task<V>(task);
+      future.priority = priority;
+      return (Task<V>) submit(future);
+   }
+
+   /**
+    * Queues every task in one step instead of one submit() at a time.
+    * If the batch is rejected part way through, by shutdown() or a
+    * saturation policy that throws, every task in it is canceled before
+    * the RejectedExecutionException is thrown, so none that has not
+    * started yet will run.
+    *
+    * @return a future that completes once all of the tasks have
+    */
+   public CompletableFuture<Void> submitAll(Collection<? extends Runnable> tasks)
+   {
+      List<Task> batch = new ArrayList(tasks.size());
+      for (Runnable task : tasks)
+      {
+         batch.add(new Task(task));
+      }
+      putAll(batch);
+      return CompletableFuture.allOf(batch.toArray(new CompletableFuture[batch.size()]));
+   }
+
+   /**
+    * Queues every task in one step like submitAll(), canceling them
+    * all the same way if the batch is rejected, but without blocking
+    * for the results like ExecutorService.invokeAll().
+    *
+    * @return a future of the results in the same order as <code>tasks</code>.
+    *         It completes exceptionally if any of the tasks throw.
+    */
+   public <V> CompletableFuture<List<V>> invokeAll(Collection<? extends Callable<V>> tasks)
+   {
+      final List<Task<V>> batch = new ArrayList(tasks.size());
+      for (Callable<V> task : tasks)
+      {
+         batch.add(new Task<V>(task));
+      }
+      putAll(batch);
+      return CompletableFuture.allOf(batch.toArray(new CompletableFuture[batch.size()])).thenApply(new Function<Void, List<V>>()
          {
-            boolean started  = false;
-            boolean canceled = false;
-            boolean done     = false;
+            public List<V> apply(Void ignored)
+            {
+               List<V> results = new ArrayList(batch.size());
+               for (Task<V> task : batch)
+               {
+                  results.add(task.join());
+               }
+               return results;
+            }
+         });
+   }
+
+   public void execute(Runnable task)
+   {
+      submit(task);
+   }
+
+   public RunnableFuture submit(RunnableFuture task)
+   {
+      if (put(task))
+         checkStartThread();
+
+      return task;
+   }
 
-            @Override
+   public void submit(RunnableFuture task, long delay)
+   {
+      schedule(task, delay, TimeUnit.MILLISECONDS);
+   }
+
+   public Task schedule(Runnable task, long delay, TimeUnit unit)
+   {
+      return (Task) schedule(new Task(task), delay, unit);
+   }
+
+   public <V> Task<V> schedule(Callable<V> task, long delay, TimeUnit unit)
+   {
+      return (Task<V>) schedule(new Task<V>(task), delay, unit);
+   }
+
+   /**
+    * Runs <code>task</code> every <code>period</code> starting after
+    * <code>initialDelay</code>.  Runs never overlap, if one takes longer
+    * than <code>period</code> the next one is queued as soon as it ends.
+    * The returned Task only completes if it is canceled, if
+    * <code>task</code> throws or, canceled, once the Executor is
+    * shut down.
+    */
+   public Task scheduleAtFixedRate(Runnable task, long initialDelay, long period, TimeUnit unit)
+   {
+      Periodic periodic = new Periodic(task, unit.toNanos(period));
+      periodic.next = System.nanoTime() + unit.toNanos(initialDelay);
+      return (Task) schedule(periodic, initialDelay, unit);
+   }
+
+   RunnableFuture schedule(final RunnableFuture task, long delay, TimeUnit unit)
+   {
+      checkShutdown(task);
+
+      TimingWheel.Timeout timeout = getWheel().schedule(new Runnable()
+         {
             public void run()
             {
                try
                {
-                  if (canceled || done)
-                     return;
-
-                  started = true;
-                  task.run();
+                  dispatch(task);
                }
-               finally
+               catch (Throwable ex)
                {
-                  synchronized (this)
-                  {
-                     done = true;
-                     notifyAll();
-                  }
+                  fail(task, ex);
                }
             }
+         }, delay, unit);
+
+      if (task instanceof Task)
+         ((Task) task).timeout = timeout;
 
-            @Override
-            public boolean cancel(boolean mayInterruptIfRunning)
+      return task;
+   }
+
+   static synchronized TimingWheel getWheel()
+   {
+      if (wheel == null)
+         wheel = new TimingWheel("Executor timer", 10, TimeUnit.MILLISECONDS, true);
+
+      return wheel;
+   }
+
+   /**
+    * Wakes an idle worker or, if none are parked, starts a new one as
+    * long as there are fewer than the target, which is poolMax unless
+    * adaptive sizing is on.
+    */
+   boolean checkStartThread()
+   {
+      if (virtual != null)
+      {
+         virtual.newThread(new Runnable()
             {
-               canceled = true;
-               return !started;
-            }
+               public void run()
+               {
+                  runVirtual();
+               }
+            }).start();
+         return true;
+      }
+
+      Worker w = idle.pollFirst();
+      if (w != null)
+      {
+         LockSupport.unpark(w.thread);
+         return true;
+      }
+
+      return queued.get() > 0 && startWorker(target);
+   }
+
+   /**
+    * Starts a new worker if there are fewer than <code>max</code>.
+    */
+   boolean startWorker(int max)
+   {
+      while (true)
+      {
+         int count = threads.get();
+         if (count >= max)
+            return false;
+
+         if (threads.compareAndSet(count, count + 1))
+         {
+            Worker worker = new Worker();
+            Thread t = new Thread(worker, poolName + " worker");
+            t.setDaemon(daemon);
+            worker.thread = t;
+            workers.add(worker);
+            started.increment();
+            t.start();
+            return true;
+         }
+      }
+   }
+
+   /**
+    * Starts poolMin workers ahead of time instead of as tasks arrive.
+    *
+    * @return the number of workers started
+    */
+   public int prestartCoreThreads()
+   {
+      int count = 0;
+      while (virtual == null && startWorker(poolMin))
+      {
+         count++;
+      }
+      return count;
+   }
 
-            @Override
-            public boolean isCancelled()
+   /**
+    * Retires the calling worker when there is nothing left to
+    * do and there are more than poolMin workers.
+    */
+   boolean checkEndThread(Worker worker)
+   {
+      while (queued.get() == 0)
+      {
+         int count = threads.get();
+         if (count <= poolMin)
+            return false;
+
+         if (threads.compareAndSet(count, count - 1))
+         {
+            workers.remove(worker);
+            retired.increment();
+
+            //a task may have been put between the emptiness check
+            //and the decrement above, make sure someone picks it up
+            if (!shutdown && queued.get() > 0)
+               checkStartThread();
+
+            return true;
+         }
+      }
+      return false;
+   }
+
+   /**
+    * Removes a worker that is exiting because the Executor was shut down.
+    */
+   void retire(Worker worker)
+   {
+      threads.decrementAndGet();
+      workers.remove(worker);
+      retired.increment();
+      checkTerminated();
+   }
+
+   int queued()
+   {
+      return (int) Math.min(Integer.MAX_VALUE, queued.get());
+   }
+
+   /**
+    * @return true if the task was queued, false if the
+    *         saturation policy ran or dropped it instead
+    */
+   boolean put(RunnableFuture task)
+   {
+      checkShutdown(task);
+
+      if (reserve(1) == 0)
+      {
+         checkShutdown(task);
+         if (!saturated(task))
+            return false;
+      }
+
+      //shutdown() may have been called after the first check, the slot
+      //claimed above is what keeps the workers from exiting under us
+      if (shutdown)
+      {
+         release(1);
+         checkShutdown(task);
+      }
+
+      enqueue(task);
+      return true;
+   }
+
+   void checkShutdown(Runnable task)
+   {
+      if (shutdown)
+      {
+         reject(task, "SHUTDOWN");
+         throw new RejectedExecutionException(poolName + " has been shut down");
+      }
+   }
+
+   /**
+    * Applies the saturation policy to a task that did not fit in the queue.
+    *
+    * @return true if room was made for <code>task</code> and it should be queued
+    * @throws RejectedExecutionException for FAIL_FAST or when BLOCK times
+    *         out or is interrupted
+    */
+   boolean saturated(RunnableFuture task)
+   {
+      switch (saturation)
+      {
+         case CALLER_RUNS:
+            reject(task, "CALLER_RUNS");
+            runTask(task);
+            return false;
+
+         case DROP_OLDEST:
+            //the oldest of the lowest priority that has any queued
+            RunnableFuture oldest = lanes[LOW].poll();
+            if (oldest == null)
+               oldest = lanes[NORMAL].poll();
+            if (oldest == null)
+               oldest = steal(null);
+            if (oldest == null)
+               oldest = lanes[HIGH].poll();
+
+            if (oldest != null)
             {
-               return canceled;
+               //the new task takes over the dropped task's slot
+               oldest.cancel(false);
+               reject(oldest, "DROP_OLDEST");
+               return true;
             }
+            //nothing waiting to drop, the slots are all held by tasks
+            //being handed to the queue (or running in virtual mode),
+            //so the new task is dropped just like DROP_NEWEST
+            task.cancel(false);
+            reject(task, "DROP_NEWEST");
+            return false;
 
-            @Override
-            public boolean isDone()
+         case DROP_NEWEST:
+            task.cancel(false);
+            reject(task, "DROP_NEWEST");
+            return false;
+
+         default:
+            reject(task, saturation.toString());
+            throw new RejectedExecutionException(poolName + " queue is full (" + saturation + ")");
+      }
+   }
+
+   /**
+    * Publishes the batch, canceling all of it if any of it is rejected.
+    */
+   void putAll(List<? extends RunnableFuture> batch)
+   {
+      try
+      {
+         putEach(batch);
+      }
+      catch (RuntimeException ex)
+      {
+         //some of the batch may already be queued, nothing that
+         //has not started yet is allowed to run
+         for (RunnableFuture task : batch)
+            task.cancel(false);
+         throw ex;
+      }
+   }
+
+   /**
+    * Publishes the batch in as few steps as queueMax allows and
+    * wakes at most one worker per task published.
+    */
+   void putEach(List<? extends RunnableFuture> batch)
+   {
+      int size = batch.size();
+      int from = 0;
+      while (from < size)
+      {
+         checkShutdown(batch.get(from));
+
+         int count = (int) reserve(size - from);
+         if (count > 0 && shutdown)
+         {
+            release(count);
+            checkShutdown(batch.get(from));
+         }
+
+         if (count == 0)
+         {
+            RunnableFuture task = batch.get(from);
+            checkShutdown(task);
+            from++;
+
+            if (saturated(task))
             {
-               return false;
+               enqueue(task);
+               checkStartThread();
             }
+            continue;
+         }
+
+         long now = System.nanoTime();
+         for (int i = from; i < from + count; i++)
+         {
+            if (batch.get(i) instanceof Task)
+               ((Task) batch.get(i)).queuedAt = sampled() ? now : 0;
+         }
+         submitted.add(count);
+
+         Worker w = local.get();
+         if (w != null)
+            w.deque.addAll(batch.subList(from, from + count));
+         else
+            lanes[NORMAL].addAll(batch.subList(from, from + count));
+
+         from += count;
+
+         for (int i = 0; i < count && checkStartThread(); i++)
+            ;
+      }
+   }
 
-            @Override
-            public Object get() throws InterruptedException, ExecutionException
+   void enqueue(RunnableFuture task)
+   {
+      submitted.increment();
+      if (task instanceof Task)
+         ((Task) task).queuedAt = sampled() ? System.nanoTime() : 0;
+
+      int lane = task instanceof Task ? ((Task) task).priority : NORMAL;
+
+      Worker w = local.get();
+      if (w != null && lane == NORMAL)
+         w.deque.addLast(task);
+      else
+         lanes[lane].offer(task);
+   }
+
+   /**
+    * Queues a task fired by the timer.  The ticker thread can not be
+    * allowed to block so this skips the queueMax check in reserve().
+    */
+   void dispatch(RunnableFuture task)
+   {
+      queued.incrementAndGet();
+      if (shutdown)
+      {
+         release(1);
+         task.cancel(false);
+         reject(task, "SHUTDOWN");
+         return;
+      }
+
+      enqueue(task);
+      checkStartThread();
+   }
+
+   /**
+    * Claims up to <code>wanted</code> of the queueMax slots.  If the
+    * queue is full and the saturation policy is BLOCK this waits up to
+    * blockTimeout for a worker to take a task.
+    *
+    * @return the number of slots claimed or 0 if the queue is full
+    */
+   long reserve(long wanted)
+   {
+      long deadline = 0;
+      while (true)
+      {
+         long count = queued.get();
+         if (count < queueMax)
+         {
+            long claimed = Math.min(wanted, queueMax - count);
+            if (queued.compareAndSet(count, count + claimed))
+               return claimed;
+         }
+         else
+         {
+            if (saturation != Saturation.BLOCK || shutdown)
+               return 0;
+
+            if (deadline == 0 && blockTimeout > 0)
+               deadline = System.nanoTime() + blockTimeout;
+
+            spaceLock.lock();
+            try
             {
-               synchronized (this)
+               spaceWaiters++;
+               while (queued.get() >= queueMax && !shutdown)
                {
-                  while (!done)
+                  if (blockTimeout <= 0)
                   {
-                     wait();
+                     notFull.await();
                   }
-               }
-               return null;
-            }
-
-            @Override
-            public Object get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException
-            {
-               synchronized (this)
-               {
-                  while (!done)
+                  else
                   {
-                     wait(unit.toMillis(timeout));
+                     long nanos = deadline - System.nanoTime();
+                     if (nanos <= 0)
+                        return 0;
+
+                     notFull.awaitNanos(nanos);
                   }
                }
-               return null;
             }
-
-         });
+            catch (InterruptedException ex)
+            {
+               Thread.currentThread().interrupt();
+               return 0;
+            }
+            finally
+            {
+               spaceWaiters--;
+               spaceLock.unlock();
+            }
+         }
+      }
    }
 
-   public synchronized RunnableFuture submit(RunnableFuture task)
+   /**
+    * Gives back a slot claimed by reserve()
+    */
+   void release()
    {
-      put(task);
-      checkStartThread();
-      return task;
+      release(1);
    }
 
-   public synchronized void submit(final RunnableFuture task, long delay)
+   void release(long count)
    {
-      getTimer().schedule(new TimerTask()
+      if (queued.addAndGet(-count) < queueMax && spaceWaiters > 0)
+      {
+         spaceLock.lock();
+         try
          {
-            @Override
-            public void run()
-            {
-               Thread t = new Thread(new Runnable()
-                  {
-                     @Override
-                     public void run()
-                     {
-                        submit(task);
-                     }
-                  });
-               t.setDaemon(daemon);
-               t.start();
-            }
-         }, delay);
+            if (count == 1)
+               notFull.signal();
+            else
+               notFull.signalAll();
+         }
+         finally
+         {
+            spaceLock.unlock();
+         }
+      }
    }
 
-   static synchronized Timer getTimer()
+   /**
+    * Stops accepting new tasks.  Tasks already queued, including ones on
+    * worker deques, are still run and workers exit once the queue is empty.
+    * Delayed and periodic tasks that have not fired yet are canceled when
+    * they do.  Submitting after this throws RejectedExecutionException.
+    */
+   public void shutdown()
    {
-      if (timer == null)
-         timer = new Timer("Executor timer");
+      shutdown = true;
+
+      //producers blocked on a full queue give up
+      spaceLock.lock();
+      try
+      {
+         notFull.signalAll();
+      }
+      finally
+      {
+         spaceLock.unlock();
+      }
 
-      return timer;
+      //parked workers wake up to drain the queue and exit
+      Worker w = null;
+      while ((w = idle.pollFirst()) != null)
+      {
+         LockSupport.unpark(w.thread);
+      }
+
+      checkTerminated();
    }
 
-   synchronized boolean checkStartThread()
+   /**
+    * Shuts down, removes every task still waiting in the queue and
+    * interrupts the tasks that are running.
+    *
+    * @return the tasks that were queued but never started
+    */
+   public List<Runnable> shutdownNow()
    {
-      if (queue.size() > 0 && threads.size() < poolMax)
+      shutdown();
+
+      List<Runnable> pending = new ArrayList();
+      for (int lane = HIGH; lane <= LOW; lane++)
       {
-         Thread t = new Thread(new Runnable()
-            {
-               public void run()
-               {
-                  processQueue();
-               }
-            }, poolName + " worker");
-         t.setDaemon(daemon);
-         threads.add(t);
-         t.start();
-         return true;
+         drain(lanes[lane], pending);
+      }
+      for (Worker worker : workers)
+      {
+         drain(worker.deque, pending);
+      }
+
+      for (Worker worker : workers)
+      {
+         worker.thread.interrupt();
+      }
+      for (Thread thread : running)
+      {
+         thread.interrupt();
+      }
+
+      checkTerminated();
+      return pending;
+   }
+
+   void drain(Queue<RunnableFuture> queue, List<Runnable> pending)
+   {
+      RunnableFuture task = null;
+      while ((task = queue.poll()) != null)
+      {
+         pending.add(task);
+         release(1);
       }
-      return false;
    }
 
-   synchronized boolean checkEndThread()
+   /**
+    * Waits for the workers to finish every task queued before shutdown()
+    * and exit.
+    *
+    * @return false if the timeout passed first
+    */
+   public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException
    {
-      if (queue.size() == 0 && threads.size() > poolMin)
+      long nanos = unit.toNanos(timeout);
+      spaceLock.lock();
+      try
       {
-         threads.remove(Thread.currentThread());
+         while (!isTerminated())
+         {
+            if (nanos <= 0)
+               return false;
+
+            nanos = terminated.awaitNanos(nanos);
+         }
          return true;
       }
-      return false;
+      finally
+      {
+         spaceLock.unlock();
+      }
    }
 
-   int queued()
+   public boolean isShutdown()
+   {
+      return shutdown;
+   }
+
+   /**
+    * @return true once shutdown and there are no queued or running tasks
+    */
+   public boolean isTerminated()
+   {
+      return shutdown && threads.get() == 0 && queued.get() == 0;
+   }
+
+   void checkTerminated()
    {
-      synchronized (queue)
+      if (isTerminated())
       {
-         return queue.size();
+         spaceLock.lock();
+         try
+         {
+            terminated.signalAll();
+         }
+         finally
+         {
+            spaceLock.unlock();
+         }
       }
    }
 
-   void put(RunnableFuture task)
+   /**
+    * Picks the next task by weighted round robin over the lanes.  Each
+    * lane can be picked weights[lane] times before the worker's credits
+    * are refilled, except that a lane with nothing queued does not hold
+    * up the others.  So a HIGH task waits behind at most
+    * weights[NORMAL] + weights[LOW] lower priority tasks per worker.
+    */
+   RunnableFuture take(Worker worker)
    {
-      synchronized (queue)
+      RunnableFuture task = null;
+      for (int pass = 0; pass < 2 && task == null; pass++)
       {
-         while (queue.size() >= queueMax)
+         for (int lane = HIGH; lane <= LOW && task == null; lane++)
          {
-            try
+            if (worker.credits[lane] > 0)
             {
-               queue.wait();
+               task = poll(worker, lane);
+               if (task != null)
+                  worker.credits[lane]--;
             }
-            catch (Exception ex)
-            {
+         }
+
+         if (task == null)
+            System.arraycopy(weights, 0, worker.credits, 0, weights.length);
+      }
+
+      if (task != null)
+         release();
+
+      return task;
+   }
+
+   RunnableFuture poll(Worker worker, int lane)
+   {
+      if (lane != NORMAL)
+         return lanes[lane].poll();
+
+      RunnableFuture task = worker.deque.pollLast();
+
+      if (task == null)
+         task = lanes[NORMAL].poll();
+
+      if (task == null)
+         task = steal(worker);
+
+      return task;
+   }
+
+   /**
+    * Each virtual thread runs one queued task and then exits.  The task's
+    * slot is held until it finishes so queueMax bounds concurrency.  There
+    * is no worker to keep lane credits so lanes are taken in priority order.
+    */
+   void runVirtual()
+   {
+      RunnableFuture task = null;
+      for (int lane = HIGH; lane <= LOW && task == null; lane++)
+      {
+         task = lanes[lane].poll();
+      }
+      if (task != null)
+      {
+         Thread thread = Thread.currentThread();
+         running.add(thread);
+         try
+         {
+            runTask(task);
+         }
+         finally
+         {
+            running.remove(thread);
+            release();
+            if (shutdown)
+               checkTerminated();
+         }
+      }
+   }
+
+   void runTask(RunnableFuture task)
+   {
+      Thread thread = Thread.currentThread();
+      long queuedAt = task instanceof Task ? ((Task) task).queuedAt : 0;
+      long start = 0;
+
+      if (queuedAt != 0)
+      {
+         start = System.nanoTime();
+         waitTime.record(start - queuedAt);
+      }
+
+      Listener[] listeners = this.listeners;
+      for (int i = 0; i < listeners.length; i++)
+      {
+         listeners[i].beforeExecute(thread, task);
+      }
+
+      Throwable error = null;
+      try
+      {
+         task.run();
+      }
+      catch (Throwable ex)
+      {
+         //Tasks catch their own failures so this is rare, either
+         //way it goes to the future and the listeners below
+         error = ex;
+         if (task instanceof Task)
+            ((Task) task).completeExceptionally(ex);
+      }
+
+      if (queuedAt != 0)
+         runTime.record(System.nanoTime() - start);
+
+      if (error == null && task instanceof Task && ((Task) task).isCompletedExceptionally())
+         error = ((Task) task).getError();
+
+      completed.increment();
+      if (error != null && !task.isCancelled())
+         failed.increment();
+
+      for (int i = 0; i < listeners.length; i++)
+      {
+         listeners[i].afterExecute(task, error);
+      }
+   }
+
+   /**
+    * Ends a task that could not be run the way runTask() ends one that
+    * threw, through its future and the listeners.
+    */
+   void fail(RunnableFuture task, Throwable error)
+   {
+      if (task instanceof Task)
+         ((Task) task).completeExceptionally(error);
+      else
+         task.cancel(false);
+
+      completed.increment();
+      failed.increment();
+
+      Listener[] listeners = this.listeners;
+      for (int i = 0; i < listeners.length; i++)
+      {
+         listeners[i].afterExecute(task, error);
+      }
+   }
+
+   /**
+    * Only one in sampleRate tasks is timed, the clock reads
+    * cost more than everything else getStats() tracks.
+    */
+   boolean sampled()
+   {
+      return sampleRate <= 1 || ThreadLocalRandom.current().nextInt(sampleRate) == 0;
+   }
+
+   /**
+    * @param sampleRate - time one in every <code>sampleRate</code> tasks for the
+    *                     wait and run time histograms, 1 times every task
+    */
+   public void setSampleRate(int sampleRate)
+   {
+      this.sampleRate = sampleRate;
+   }
+
+   /**
+    * Counts the rejection and tells any listeners why
+    * <code>task</code> was not, or will not be, run.
+    */
+   void reject(Runnable task, String reason)
+   {
+      rejected.increment();
+
+      Listener[] listeners = this.listeners;
+      for (int i = 0; i < listeners.length; i++)
+      {
+         listeners[i].onReject(task, reason);
+      }
+   }
+
+   /**
+    * @param keepAlive - how long a worker above poolMin waits
+    *                    for more work before it exits
+    */
+   public void setKeepAlive(long keepAlive, TimeUnit unit)
+   {
+      this.keepAlive = unit.toNanos(keepAlive);
+   }
+
+   /**
+    * Turns on adaptive pool sizing.  Instead of starting a worker for every
+    * submit() until there are poolMax, the pool starts at poolMin workers
+    * and a controller checks every 100ms.  It adds a worker while queued
+    * tasks wait longer than <code>targetWait</code>, as long as the last
+    * worker it added raised throughput, and drops back toward poolMin once
+    * waits fall under half of <code>targetWait</code> and workers sit idle.
+    */
+   public void setAdaptive(boolean adaptive, long targetWait, TimeUnit unit)
+   {
+      this.targetWait = unit.toNanos(targetWait);
+
+      if (adaptive && !this.adaptive)
+      {
+         this.adaptive = true;
+         this.target = poolMin;
+         getWheel().schedule(new Controller(), 100, TimeUnit.MILLISECONDS);
+      }
+      else if (!adaptive)
+      {
+         this.adaptive = false;
+         this.target = poolMax;
+      }
+   }
+
+   /**
+    * Sets how many tasks a worker takes from each lane, when all three have
+    * tasks queued, before starting the cycle over.  The default is 8, 4, 1.
+    */
+   public void setLaneWeights(int high, int normal, int low)
+   {
+      weights = new int[]{Math.max(1, high), Math.max(1, normal), Math.max(1, low)};
+   }
+
+   public void setSaturationPolicy(Saturation saturation)
+   {
+      setSaturationPolicy(saturation, 0, TimeUnit.MILLISECONDS);
+   }
 
+   /**
+    * @param timeout - how long BLOCK waits for room before rejecting
+    *                  the task, 0 waits forever
+    */
+   public void setSaturationPolicy(Saturation saturation, long timeout, TimeUnit unit)
+   {
+      this.saturation = saturation;
+      this.blockTimeout = unit.toNanos(timeout);
+   }
+
+   public synchronized void addListener(Listener listener)
+   {
+      List<Listener> list = new ArrayList(Arrays.asList(listeners));
+      list.add(listener);
+      listeners = list.toArray(new Listener[list.size()]);
+   }
+
+   public synchronized void removeListener(Listener listener)
+   {
+      List<Listener> list = new ArrayList(Arrays.asList(listeners));
+      list.remove(listener);
+      listeners = list.toArray(new Listener[list.size()]);
+   }
+
+   /**
+    * @return a point in time copy of this pool's counters
+    */
+   public Stats getStats()
+   {
+      Stats stats = new Stats();
+      stats.poolName = poolName;
+      stats.threads = threads.get();
+      stats.targetThreads = target;
+      stats.idle = idle.size();
+      stats.queued = queued.get();
+      stats.submitted = submitted.sum();
+      stats.completed = completed.sum();
+      stats.failed = failed.sum();
+      stats.rejected = rejected.sum();
+      stats.threadsStarted = started.sum();
+      stats.threadsRetired = retired.sum();
+      stats.waitTime = waitTime.snapshot();
+      stats.runTime = runTime.snapshot();
+      return stats;
+   }
+
+   RunnableFuture steal(Worker thief)
+   {
+      Object[] victims = workers.toArray();
+      int length = victims.length;
+      if (length > 0)
+      {
+         int start = ThreadLocalRandom.current().nextInt(length);
+         for (int i = 0; i < length; i++)
+         {
+            Worker victim = (Worker) victims[(start + i) % length];
+            if (victim != thief)
+            {
+               RunnableFuture task = victim.deque.pollFirst();
+               if (task != null)
+                  return task;
             }
          }
-         queue.add(task);
-         queue.notifyAll();
       }
+      return null;
    }
 
-   RunnableFuture take()
+   void processQueue(Worker worker)
    {
-      RunnableFuture t = null;
-      synchronized (queue)
+      local.set(worker);
+      try
       {
-         while (queue.size() == 0)
+         long idleSince = 0;
+         while (true)
          {
-            try
+            RunnableFuture task = take(worker);
+            if (task != null)
             {
-               queue.wait();
+               idleSince = 0;
+               runTask(task);
+               continue;
             }
-            catch (InterruptedException ex)
+
+            if (shutdown)
             {
+               if (queued.get() == 0)
+                  break;
 
+               //a put() that got in just ahead of shutdown() is still handing
+               //over its task, or is about to give its slot back
+               Thread.yield();
+               continue;
             }
+
+            long now = System.nanoTime();
+            if (idleSince == 0)
+               idleSince = now;
+
+            //workers over the adaptive target retire as soon as they run
+            //dry, the rest only after keepAlive, and never below poolMin
+            long idleFor = now - idleSince;
+            if ((threads.get() > target || idleFor >= keepAlive) && checkEndThread(worker))
+               return;
+
+            idle.addFirst(worker);
+
+            //recheck after advertising as idle so a put() or shutdown()
+            //racing with us either sees this worker or we see its change
+            if (queued.get() > 0 || shutdown)
+            {
+               idle.remove(worker);
+               continue;
+            }
+
+            if (threads.get() > poolMin)
+               LockSupport.parkNanos(this, keepAlive - idleFor);
+            else
+               LockSupport.park(this);
+
+            idle.remove(worker);
          }
 
-         t = queue.removeFirst();
-         queue.notifyAll();
+         retire(worker);
+      }
+      finally
+      {
+         local.remove();
       }
-      return t;
    }
 
-   void processQueue()
+   /**
+    * Runs the wrapped Callable and completes with its result, or
+    * exceptionally with whatever it threw.  A task that is canceled
+    * before a worker gets to it is skipped.
+    */
+   public static class Task<V> extends CompletableFuture<V> implements RunnableFuture<V>
    {
-      try
+      Callable<V>                  callable = null;
+      volatile TimingWheel.Timeout timeout  = null;
+      long                         queuedAt = 0;
+      int                          priority = NORMAL;
+
+      public Task(Callable<V> callable)
+      {
+         this.callable = callable;
+      }
+
+      public Task(Runnable runnable)
+      {
+         this(Executors.callable(runnable, (V) null));
+      }
+
+      public void run()
+      {
+         if (isDone())
+            return;
+
+         try
+         {
+            complete(callable.call());
+         }
+         catch (Throwable ex)
+         {
+            completeExceptionally(ex);
+         }
+      }
+
+      Throwable getError()
       {
-         while (true && !shutdown && !checkEndThread())
+         try
+         {
+            join();
+            return null;
+         }
+         catch (CompletionException ex)
+         {
+            return ex.getCause();
+         }
+         catch (CancellationException ex)
          {
-            do
+            return ex;
+         }
+      }
+
+      public boolean cancel(boolean mayInterruptIfRunning)
+      {
+         boolean canceled = super.cancel(mayInterruptIfRunning);
+
+         TimingWheel.Timeout timeout = this.timeout;
+         if (timeout != null)
+            timeout.cancel();
+
+         return canceled;
+      }
+   }
+
+   /**
+    * Reschedules itself <code>period</code> after the
+    * previous run was due until it is canceled or the
+    * Executor is shut down.
+    */
+   class Periodic extends Task
+   {
+      long period = 0;
+      long next   = 0;
+
+      Periodic(Runnable task, long period)
+      {
+         super(task);
+         this.period = period;
+      }
+
+      public void run()
+      {
+         if (isDone())
+            return;
+
+         try
+         {
+            callable.call();
+         }
+         catch (Throwable ex)
+         {
+            completeExceptionally(ex);
+            return;
+         }
+
+         next += period;
+         try
+         {
+            schedule(this, next - System.nanoTime(), TimeUnit.NANOSECONDS);
+         }
+         catch (RejectedExecutionException ex)
+         {
+            //shut down since this run started, the task ends like
+            //any other scheduled task the shutdown caught waiting
+            cancel(false);
+         }
+      }
+   }
+
+   /**
+    * What put() does with a task when there are already queueMax
+    * tasks queued.  Every policy but BLOCK, and BLOCK when it times out,
+    * is reported to Listener.onReject() and counted in Stats.rejected.
+    */
+   public enum Saturation
+   {
+      /**
+       * Wait for room, up to the timeout if one was given, then
+       * throw RejectedExecutionException
+       */
+      BLOCK,
+
+      /**
+       * Run the task on the submitting thread
+       */
+      CALLER_RUNS,
+
+      /**
+       * Cancel the oldest task of the lowest non-empty priority to make
+       * room, trying LOW, then NORMAL including the workers' deques, and
+       * HIGH last
+       */
+      DROP_OLDEST,
+
+      /**
+       * Cancel the task being submitted
+       */
+      DROP_NEWEST,
+
+      /**
+       * Throw RejectedExecutionException
+       */
+      FAIL_FAST
+   }
+
+   /**
+    * Override any of these no-op callbacks and register with addListener().
+    * They are called on the thread doing the work so should be quick.
+    */
+   public static class Listener
+   {
+      public void beforeExecute(Thread thread, Runnable task)
+      {
+      }
+
+      public void afterExecute(Runnable task, Throwable error)
+      {
+      }
+
+      public void onReject(Runnable task, String reason)
+      {
+      }
+   }
+
+   /**
+    * A snapshot of an Executor's counters returned by getStats().  Counters
+    * are totals since the Executor was created.  completed includes the
+    * tasks that failed.  The histograms only hold the sampled tasks.
+    */
+   public static class Stats
+   {
+      public String             poolName       = null;
+      public int                threads        = 0;
+      public int                targetThreads  = 0;
+      public int                idle           = 0;
+      public long               queued         = 0;
+      public long               submitted      = 0;
+      public long               completed      = 0;
+      public long               failed         = 0;
+      public long               rejected       = 0;
+      public long               threadsStarted = 0;
+      public long               threadsRetired = 0;
+      public Histogram.Snapshot waitTime       = null;
+      public Histogram.Snapshot runTime        = null;
+
+      public String toString()
+      {
+         return poolName + " threads=" + threads + " targetThreads=" + targetThreads + " idle=" + idle + " queued=" + queued //
+               + " submitted=" + submitted + " completed=" + completed + " failed=" + failed + " rejected=" + rejected //
+               + " threadsStarted=" + threadsStarted + " threadsRetired=" + threadsRetired //
+               + " waitTime[" + waitTime + "] runTime[" + runTime + "]";
+      }
+   }
+
+   /**
+    * Runs on the timer thread, compares the last interval's queue wait
+    * time and throughput, and moves the target worker count one step.
+    */
+   class Controller implements Runnable
+   {
+      long    lastCompleted  = completed.sum();
+      long    lastWaitCount  = 0;
+      long    lastWaitSum    = 0;
+      long    lastThroughput = 0;
+      boolean grew           = false;
+
+      public void run()
+      {
+         if (!adaptive || shutdown)
+            return;
+
+         Histogram.Snapshot waits = waitTime.snapshot();
+         long waitCount = waits.getCount() - lastWaitCount;
+         long waitSum = waits.getSum() - lastWaitSum;
+         long throughput = completed.sum() - lastCompleted;
+
+         lastWaitCount = waits.getCount();
+         lastWaitSum = waits.getSum();
+         lastCompleted += throughput;
+
+         //no sampled task started at all but some are waiting means the
+         //workers are all stuck on long tasks, treat that as a long wait
+         long backlog = queued.get();
+         long wait = waitCount > 0 ? waitSum / waitCount : (backlog > 0 ? Long.MAX_VALUE : 0);
+
+         int current = target;
+         if (backlog > 0 && wait > targetWait && current < poolMax && (!grew || throughput > lastThroughput))
+         {
+            target = current + 1;
+            grew = true;
+            startWorker(target);
+         }
+         else
+         {
+            if ((backlog == 0 || wait < targetWait / 2) && current > poolMin && !idle.isEmpty())
             {
-               RunnableFuture task = take();
-               task.run();
+               target = current - 1;
+
+               //wake a parked worker so it sees it is over the target and exits
+               Worker w = idle.pollFirst();
+               if (w != null)
+                  LockSupport.unpark(w.thread);
             }
-            while (queue.size() > 0);
-
-            //            if (!shutdown)
-            //            {
-            //               Thread.sleep(delay);
-            //            }
-            //
-            //            if (queue.size() == 0)
-            //               break;
+
+            grew = false;
          }
+         lastThroughput = throughput;
+
+         getWheel().schedule(this, 100, TimeUnit.MILLISECONDS);
       }
-      catch (Exception ex)
+   }
+
+   class Worker implements Runnable
+   {
+      ConcurrentLinkedDeque<RunnableFuture> deque   = new ConcurrentLinkedDeque();
+      Thread                                thread  = null;
+      int[]                                 credits = weights.clone();
+
+      public void run()
       {
-         ex.printStackTrace();
+         processQueue(this);
       }
    }
 
@@ -0,0 +1,560 @@
+/*
+ * Copyright 2008-2017 Wells Burke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.forty11.j.utils;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.DosFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+import io.forty11.j.api.PathSet;
+
+/**
+ * A persistent index of every directory and file below <code>root</code>
+ * recording each entry's name, type, size and modified time.
+ * <p>
+ * The index is a compact binary file that is memory mapped when opened.
+ * Only its table of directories is read up front.  A directory's entries
+ * are decoded from the mapping when it is listed.
+ * <p>
+ * refresh() brings the index up to date incrementally.  Every directory
+ * is stat'ed, but only directories whose modified time has changed are
+ * listed again.  Unchanged directories are copied over byte for byte.
+ * Changing a file's content does not change its directory's modified
+ * time, so the size and time of a file are as of the last time its
+ * directory was listed.  Directories modified within RACY millis of a
+ * refresh are always listed again by the next one, because a change in
+ * the same clock tick would not move their time.
+ * <p>
+ * The index does not descend through symbolic links.
+ * <p>
+ * Offsets in the index are ints and it is mapped in one piece, so an
+ * index can not be larger than 2GB.  refresh() throws an IOException
+ * rather than write a larger one.
+ * <p>
+ * A FindIt given the index with setIndex() reads directories from it
+ * instead of the file system, following links itself, so its results do
+ * not change.  find() answers a PathSet directly from the index alone.
+ */
+public class FileIndex
+{
+   //"FJIX"
+   static final int      MAGIC   = 0x464a4958;
+   static final int      VERSION = 1;
+
+   static final int      DIR     = 1;
+   static final int      FILE    = 2;
+   static final int      LINK    = 4;
+   static final int      OTHER   = 8;
+   static final int      HIDDEN  = 16;
+
+   static final long     RACY    = 2000;
+
+   //the most one mapping, and an int offset, can address
+   static final long     MAX     = Integer.MAX_VALUE;
+
+   static final boolean  DOS     = System.getProperty("os.name").toLowerCase().startsWith("windows");
+   static final Class    ATTRS   = DOS ? DosFileAttributes.class : BasicFileAttributes.class;
+
+   Path                  root    = null;
+   File                  file    = null;
+
+   volatile View         view    = new View();
+
+   int                   listed  = 0;
+   int                   reused  = 0;
+
+   /**
+    * Opens the index stored in <code>file</code>, if it exists and is
+    * an index of <code>root</code>.  Otherwise the index is empty until
+    * refresh() is called.
+    */
+   public FileIndex(File root, File file)
+   {
+      this.root = root.toPath().toAbsolutePath().normalize();
+      this.file = file.getAbsoluteFile();
+
+      if (this.file.exists())
+      {
+         try
+         {
+            view = load();
+         }
+         catch (Exception ex)
+         {
+            //unreadable or from an older version, rebuilt by refresh()
+            view = new View();
+         }
+      }
+   }
+
+   public File getRoot()
+   {
+      return root.toFile();
+   }
+
+   /**
+    * @return the number of directories the last refresh() listed
+    */
+   public int getListed()
+   {
+      return listed;
+   }
+
+   /**
+    * @return the number of unchanged directories the last refresh() copied
+    */
+   public int getReused()
+   {
+      return reused;
+   }
+
+   /**
+    * @return the sorted entries of <code>dir</code> or null if it is
+    *         not an indexed directory
+    */
+   public List<Entry> list(Path dir)
+   {
+      String path = relative(dir);
+      return path != null ? view.list(path) : null;
+   }
+
+   /**
+    * @return the entry for <code>file</code> or null if it is not indexed
+    */
+   public Entry get(Path file)
+   {
+      String path = relative(file);
+      if (path == null || path.length() == 0)
+         return null;
+
+      int slash = path.lastIndexOf('/');
+      List<Entry> entries = view.list(slash < 0 ? "" : path.substring(0, slash));
+      if (entries != null)
+      {
+         String name = path.substring(slash + 1);
+         for (Entry entry : entries)
+         {
+            if (entry.name.equals(name))
+               return entry;
+         }
+      }
+      return null;
+   }
+
+   /**
+    * Walks the index matching each path, relative to root, with the
+    * PathSet's Glob one name at a time.  Directories below which nothing
+    * can be included, or everything is excluded, are skipped.
+    *
+    * @return every indexed file or directory whose path is included,
+    *         and not excluded, by <code>paths</code>, each directory's
+    *         entries before those of its subdirectories
+    */
+   public List<File> find(PathSet paths)
+   {
+      View view = this.view;
+      Glob glob = paths.getGlob();
+      boolean includeAll = paths.getIncludes().size() == 0;
+
+      List<File> found = new ArrayList();
+      Deque<Object[]> dirs = new ArrayDeque();
+      dirs.push(new Object[]{"", glob.start()});
+
+      while (!dirs.isEmpty())
+      {
+         Object[] next = dirs.pop();
+         String dir = (String) next[0];
+         List<Entry> entries = view.list(dir);
+         if (entries == null)
+            continue;
+
+         List<Object[]> children = new ArrayList();
+         for (Entry entry : entries)
+         {
+            String path = dir.length() == 0 ? entry.name : dir + "/" + entry.name;
+            Glob.State state = glob.next((Glob.State) next[1], entry.name);
+
+            int matches = state.matches();
+            if ((includeAll || (matches & PathSet.INCLUDED) != 0) && (matches & PathSet.EXCLUDED) == 0)
+               found.add(root.resolve(path).toFile());
+
+            if (entry.isDirectory())
+            {
+               state = glob.next(state, '/');
+               if ((state.all() & PathSet.EXCLUDED) == 0 && (includeAll || (state.alive() & PathSet.INCLUDED) != 0))
+                  children.add(new Object[]{path, state});
+            }
+         }
+
+         for (int i = children.size() - 1; i >= 0; i--)
+            dirs.push(children.get(i));
+      }
+      return found;
+   }
+
+   /**
+    * @return the '/' separated path of <code>file</code> relative to
+    *         root or null if it is not below root
+    */
+   String relative(Path file)
+   {
+      file = file.toAbsolutePath().normalize();
+      if (!file.startsWith(root))
+         return null;
+
+      String path = root.relativize(file).toString();
+      return File.separatorChar == '/' ? path : path.replace(File.separatorChar, '/');
+   }
+
+   /**
+    * Writes a new index to a uniquely named sibling temp file, listing
+    * only changed directories, and atomically renames it over the old
+    * one.  Concurrent refreshes, even from other processes, each rename
+    * a complete index into place.
+    */
+   public synchronized FileIndex refresh() throws IOException
+   {
+      View old = view;
+      long now = System.currentTimeMillis();
+      int listed = 0;
+      int reused = 0;
+
+      //unique so refreshes from other processes never share a temp file
+      File temp = new File(file.getParentFile(), "." + file.getName() + "." + Long.toHexString(ThreadLocalRandom.current().nextLong()) + ".tmp");
+      try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW), 64 * 1024)))
+      {
+         out.writeInt(MAGIC);
+         out.writeInt(VERSION);
+         write(out, root.toString());
+
+         List<String> paths = new ArrayList();
+         List<int[]> records = new ArrayList();
+
+         Deque<Object[]> dirs = new ArrayDeque();
+         dirs.push(new Object[]{"", root, Files.readAttributes(root, BasicFileAttributes.class)});
+
+         while (!dirs.isEmpty())
+         {
+            Object[] next = dirs.pop();
+            String path = (String) next[0];
+            Path dir = (Path) next[1];
+            long mtime = ((BasicFileAttributes) next[2]).lastModifiedTime().toMillis();
+
+            int offset = out.size();
+            int[] record = old.dirs.get(path);
+            List<Entry> entries = null;
+
+            if (record != null && old.buffer.getLong(record[0]) == mtime)
+            {
+               ByteBuffer bytes = old.buffer.duplicate();
+               bytes.position(record[0]);
+               bytes.limit(record[0] + record[1]);
+               byte[] copy = new byte[record[1]];
+               bytes.get(copy);
+               out.write(copy);
+
+               entries = old.list(path);
+               reused++;
+            }
+            else
+            {
+               entries = scan(dir);
+               out.writeLong(now - mtime < RACY ? -1 : mtime);
+               out.writeInt(entries.size());
+               for (Entry entry : entries)
+               {
+                  write(out, entry.name);
+                  out.writeByte(entry.flags);
+                  out.writeLong(entry.size);
+                  out.writeLong(entry.mtime);
+               }
+               listed++;
+            }
+
+            //size() sticks at Integer.MAX_VALUE instead of overflowing
+            if (out.size() >= MAX)
+               throw new IOException("An index can not be larger than 2GB: " + file);
+
+            paths.add(path);
+            records.add(new int[]{offset, out.size() - offset});
+
+            for (int i = entries.size() - 1; i >= 0; i--)
+            {
+               Entry entry = entries.get(i);
+               if (entry.isDirectory())
+               {
+                  try
+                  {
+                     Path child = dir.resolve(entry.name);
+                     BasicFileAttributes attrs = Files.readAttributes(child, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                     if (attrs.isDirectory())
+                        dirs.push(new Object[]{path.length() == 0 ? entry.name : path + "/" + entry.name, child, attrs});
+                  }
+                  catch (IOException ex)
+                  {
+                     //deleted since its parent was listed
+                  }
+               }
+            }
+         }
+
+         int table = out.size();
+         out.writeInt(paths.size());
+         for (int i = 0; i < paths.size(); i++)
+         {
+            write(out, paths.get(i));
+            out.writeInt(records.get(i)[0]);
+            out.writeInt(records.get(i)[1]);
+         }
+         out.writeLong(table);
+      }
+      catch (IOException ex)
+      {
+         temp.delete();
+         throw ex;
+      }
+
+      if (temp.length() > MAX)
+      {
+         temp.delete();
+         throw new IOException("An index can not be larger than 2GB: " + file);
+      }
+
+      try
+      {
+         Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+      }
+      catch (AtomicMoveNotSupportedException ex)
+      {
+         Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      }
+
+      view = load();
+      this.listed = listed;
+      this.reused = reused;
+      return this;
+   }
+
+   /**
+    * @return the sorted entries of <code>dir</code> each stat'ed once
+    */
+   List<Entry> scan(Path dir)
+   {
+      List<Entry> entries = new ArrayList();
+      try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir))
+      {
+         for (Path child : stream)
+         {
+            try
+            {
+               String name = child.getFileName().toString();
+               BasicFileAttributes attrs = Files.readAttributes(child, ATTRS, LinkOption.NOFOLLOW_LINKS);
+
+               int flags = attrs.isDirectory() ? DIR : attrs.isRegularFile() ? FILE : attrs.isSymbolicLink() ? LINK : OTHER;
+               if (DOS ? ((DosFileAttributes) attrs).isHidden() : name.startsWith("."))
+                  flags |= HIDDEN;
+
+               entries.add(new Entry(name, flags, attrs.size(), attrs.lastModifiedTime().toMillis()));
+            }
+            catch (IOException ex)
+            {
+               //deleted while being listed
+            }
+         }
+      }
+      catch (IOException ex)
+      {
+         //not readable, indexed as empty
+      }
+
+      Collections.sort(entries, new Comparator<Entry>()
+         {
+            public int compare(Entry a, Entry b)
+            {
+               return a.name.compareTo(b.name);
+            }
+         });
+      return entries;
+   }
+
+   View load() throws IOException
+   {
+      try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ))
+      {
+         View view = new View();
+         view.buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+         ByteBuffer buffer = view.buffer.duplicate();
+         if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION || !read(buffer).equals(root.toString()))
+            throw new IOException("Not an index of " + root + ": " + file);
+
+         buffer.position((int) buffer.getLong(buffer.limit() - 8));
+         int count = buffer.getInt();
+         for (int i = 0; i < count; i++)
+         {
+            String path = read(buffer);
+            view.dirs.put(path, new int[]{buffer.getInt(), buffer.getInt()});
+         }
+         return view;
+      }
+   }
+
+   static void write(DataOutputStream out, String string) throws IOException
+   {
+      byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+      out.writeInt(bytes.length);
+      out.write(bytes);
+   }
+
+   static String read(ByteBuffer buffer)
+   {
+      byte[] bytes = new byte[buffer.getInt()];
+      buffer.get(bytes);
+      return new String(bytes, StandardCharsets.UTF_8);
+   }
+
+   /**
+    * The mapped index and its table of directory records, replaced as a
+    * whole by each refresh() so readers never see a partial update.
+    */
+   static class View
+   {
+      MappedByteBuffer   buffer = null;
+      Map<String, int[]> dirs   = new HashMap();
+
+      List<Entry> list(String path)
+      {
+         int[] record = dirs.get(path);
+         if (record == null)
+            return null;
+
+         ByteBuffer buffer = this.buffer.duplicate();
+         buffer.position(record[0] + 8);
+
+         int count = buffer.getInt();
+         List<Entry> entries = new ArrayList(count);
+         for (int i = 0; i < count; i++)
+         {
+            entries.add(new Entry(read(buffer), buffer.get(), buffer.getLong(), buffer.getLong()));
+         }
+         return entries;
+      }
+   }
+
+   /**
+    * An indexed file or directory.  Its attributes are as of the last
+    * time its directory was listed.
+    */
+   public static class Entry implements BasicFileAttributes
+   {
+      String name  = null;
+      int    flags = 0;
+      long   size  = 0;
+      long   mtime = 0;
+
+      Entry(String name, int flags, long size, long mtime)
+      {
+         this.name = name;
+         this.flags = flags;
+         this.size = size;
+         this.mtime = mtime;
+      }
+
+      public String getName()
+      {
+         return name;
+      }
+
+      public boolean isHidden()
+      {
+         return (flags & HIDDEN) != 0;
+      }
+
+      public boolean isDirectory()
+      {
+         return (flags & DIR) != 0;
+      }
+
+      public boolean isRegularFile()
+      {
+         return (flags & FILE) != 0;
+      }
+
+      public boolean isSymbolicLink()
+      {
+         return (flags & LINK) != 0;
+      }
+
+      public boolean isOther()
+      {
+         return (flags & OTHER) != 0;
+      }
+
+      public long size()
+      {
+         return size;
+      }
+
+      public FileTime lastModifiedTime()
+      {
+         return FileTime.fromMillis(mtime);
+      }
+
+      public FileTime lastAccessTime()
+      {
+         return lastModifiedTime();
+      }
+
+      public FileTime creationTime()
+      {
+         return lastModifiedTime();
+      }
+
+      public Object fileKey()
+      {
+         return null;
+      }
+
+      public String toString()
+      {
+         return name;
+      }
+   }
+}
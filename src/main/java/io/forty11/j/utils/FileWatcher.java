@@ -0,0 +1,379 @@
+/*
+ * Copyright 2008-2017 Wells Burke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.forty11.j.utils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import io.forty11.j.api.PathSet;
+
+/**
+ * Watches every directory below <code>root</code> and tells a Listener
+ * when a file or directory included by a PathSet, and not excluded by
+ * it, is created, modified or deleted.
+ * <p>
+ * Paths are matched relative to root, with '/' separators, the same way
+ * PathSet.included() and excluded() match them.  Directories below which
+ * every path is excluded, or no include could match, are not watched.
+ * Directories created later are registered as they appear and anything
+ * already created inside them is reported as created.
+ * <p>
+ * Events are debounced.  A path is only reported once it has been quiet
+ * for the debounce delay, and the events in between are coalesced, e.g.
+ * a create followed by modifies is one create and a create followed by a
+ * delete is nothing at all.
+ * <p>
+ * If the operating system drops events, the watcher registers any
+ * directories it missed but the dropped events are lost.
+ * <p>
+ * The Listener is called on the single watcher thread.  Failures, its own
+ * included, are passed to Listener.onError() and the watcher carries on.
+ */
+public class FileWatcher implements Closeable
+{
+   static final int         CREATE   = 1;
+   static final int         MODIFY   = 2;
+   static final int         DELETE   = 3;
+
+   Path                     root     = null;
+   PathSet                  paths    = null;
+   Listener                 listener = null;
+   long                     debounce = 250;
+
+   WatchService             service  = null;
+   Map<WatchKey, Path>      keys     = new HashMap();
+   Thread                   thread   = null;
+   volatile boolean         closed   = false;
+
+   //insertion ordered by last event, so the quietest are first
+   LinkedHashMap<Path, int[]> pending = new LinkedHashMap();
+   Map<Path, Long>          times    = new HashMap();
+
+   public FileWatcher(File root, PathSet paths, Listener listener)
+   {
+      this.root = root.toPath().toAbsolutePath().normalize();
+      this.paths = paths;
+      this.listener = listener;
+   }
+
+   /**
+    * @param delay - how long a path must be quiet before it is reported
+    */
+   public void setDebounce(long delay, TimeUnit unit)
+   {
+      this.debounce = Math.max(0, unit.toMillis(delay));
+   }
+
+   /**
+    * Registers the tree and starts the watcher thread.
+    */
+   public synchronized FileWatcher start() throws IOException
+   {
+      if (thread == null)
+      {
+         service = root.getFileSystem().newWatchService();
+         register(root, false);
+
+         thread = new Thread(new Runnable()
+            {
+               public void run()
+               {
+                  processEvents();
+               }
+            }, "FileWatcher-" + root.getFileName());
+         thread.setDaemon(true);
+         thread.start();
+      }
+      return this;
+   }
+
+   public void close()
+   {
+      closed = true;
+      try
+      {
+         if (service != null)
+            service.close();
+      }
+      catch (IOException ex)
+      {
+         //nothing more will be reported either way
+      }
+   }
+
+   void processEvents()
+   {
+      while (!closed)
+      {
+         try
+         {
+            WatchKey key = null;
+            if (pending.isEmpty())
+            {
+               key = service.take();
+            }
+            else
+            {
+               long wait = times.get(pending.keySet().iterator().next()) + debounce - System.currentTimeMillis();
+               key = wait > 0 ? service.poll(wait, TimeUnit.MILLISECONDS) : service.poll();
+            }
+
+            if (key != null)
+               processKey(key);
+
+            flush();
+         }
+         catch (ClosedWatchServiceException ex)
+         {
+            break;
+         }
+         catch (InterruptedException ex)
+         {
+            break;
+         }
+         catch (Exception ex)
+         {
+            error(root, ex);
+         }
+      }
+   }
+
+   void processKey(WatchKey key) throws IOException
+   {
+      Path dir = keys.get(key);
+
+      for (WatchEvent event : key.pollEvents())
+      {
+         if (event.kind() == StandardWatchEventKinds.OVERFLOW)
+         {
+            register(root, false);
+            continue;
+         }
+
+         if (dir == null)
+            continue;
+
+         Path file = dir.resolve((Path) event.context());
+
+         if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE)
+         {
+            event(file, CREATE);
+            if (Files.isDirectory(file, LinkOption.NOFOLLOW_LINKS))
+               register(file, true);
+         }
+         else if (event.kind() == StandardWatchEventKinds.ENTRY_MODIFY)
+         {
+            event(file, MODIFY);
+         }
+         else if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE)
+         {
+            event(file, DELETE);
+         }
+      }
+
+      if (!key.reset())
+         keys.remove(key);
+   }
+
+   /**
+    * Registers <code>dir</code> and every directory below it that could
+    * hold a match, optionally reporting their entries as created.
+    */
+   void register(Path dir, boolean created) throws IOException
+   {
+      Glob glob = paths.getGlob();
+      Deque<Path> dirs = new ArrayDeque();
+      dirs.push(dir);
+
+      while (!dirs.isEmpty())
+      {
+         dir = dirs.pop();
+
+         String path = relative(dir);
+         if (path.length() > 0)
+         {
+            Glob.State state = glob.next(glob.start(), path + "/");
+            if ((state.all() & PathSet.EXCLUDED) != 0)
+               continue;
+
+            if (paths.getIncludes().size() > 0 && (state.alive() & PathSet.INCLUDED) == 0)
+               continue;
+         }
+
+         try
+         {
+            WatchKey key = dir.register(service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+            keys.put(key, dir);
+         }
+         catch (IOException ex)
+         {
+            //deleted or not readable
+            continue;
+         }
+
+         try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir))
+         {
+            for (Path child : stream)
+            {
+               if (created)
+                  event(child, CREATE);
+
+               if (Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS))
+                  dirs.push(child);
+            }
+         }
+         catch (IOException ex)
+         {
+            //deleted since it was registered
+         }
+      }
+   }
+
+   /**
+    * Coalesces <code>kind</code> with any event still pending for
+    * <code>file</code> and restarts its debounce delay.
+    */
+   void event(Path file, int kind)
+   {
+      String path = relative(file);
+      if (!paths.included(path) || paths.excluded(path))
+         return;
+
+      int[] previous = pending.remove(file);
+      if (previous != null)
+      {
+         int first = previous[0];
+         if (first == CREATE && kind == DELETE)
+         {
+            //never existed as far as the listener knows
+            times.remove(file);
+            return;
+         }
+         else if (first == CREATE)
+         {
+            kind = CREATE;
+         }
+         else if (first == DELETE && kind == CREATE)
+         {
+            kind = MODIFY;
+         }
+      }
+
+      pending.put(file, new int[]{kind});
+      times.put(file, System.currentTimeMillis());
+   }
+
+   void flush()
+   {
+      long now = System.currentTimeMillis();
+      Iterator<Map.Entry<Path, int[]>> it = pending.entrySet().iterator();
+      while (it.hasNext())
+      {
+         Map.Entry<Path, int[]> entry = it.next();
+         Path file = entry.getKey();
+         if (times.get(file) + debounce > now)
+            break;
+
+         it.remove();
+         times.remove(file);
+
+         try
+         {
+            switch (entry.getValue()[0])
+            {
+               case CREATE:
+                  listener.onCreate(file.toFile());
+                  break;
+               case MODIFY:
+                  listener.onModify(file.toFile());
+                  break;
+               case DELETE:
+                  listener.onDelete(file.toFile());
+                  break;
+            }
+         }
+         catch (Throwable ex)
+         {
+            error(file, ex);
+         }
+      }
+   }
+
+   /**
+    * Hands a failure to the listener, which must not stop the watcher
+    * thread however it handles it.
+    */
+   void error(Path file, Throwable error)
+   {
+      try
+      {
+         listener.onError(file.toFile(), error);
+      }
+      catch (Throwable ex)
+      {
+         //already reported as best we can
+      }
+   }
+
+   String relative(Path file)
+   {
+      String path = root.relativize(file).toString();
+      return File.separatorChar == '/' ? path : path.replace(File.separatorChar, '/');
+   }
+
+   /**
+    * Override the events you are interested in.
+    */
+   public static class Listener
+   {
+      public void onCreate(File file)
+      {
+      }
+
+      public void onModify(File file)
+      {
+      }
+
+      public void onDelete(File file)
+      {
+      }
+
+      /**
+       * @param file - the file being reported, or root if the failure
+       *               was in watching the tree
+       */
+      public void onError(File file, Throwable error)
+      {
+      }
+   }
+}
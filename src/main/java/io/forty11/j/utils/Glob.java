@@ -0,0 +1,369 @@
+/*
+ * Copyright 2008-2017 Wells Burke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.forty11.j.utils;
+
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Matches strings against any number of '*' and '?' wildcard patterns in
+ * a single pass over the string, no matter how many patterns there are.
+ * <p>
+ * '*' matches zero or more of any character, including '/', and '?'
+ * matches any one character, the same as Strings.wildcardToRegex().
+ * <p>
+ * Globstar matching can be turned on for paths, in which case a '**&#47;'
+ * can also match no directories at all, e.g. '**&#47;x' matches 'x' and
+ * 'a/**&#47;x' matches 'a/x', the way FindIt walks them.
+ * <p>
+ * Patterns are passed in sets.  A match reports a bit mask with bit
+ * <code>(1 &lt;&lt; i)</code> set if any pattern in set <code>i</code>
+ * matched, so a PathSet can test its includes and excludes at once.
+ * <p>
+ * All of the patterns are compiled into one NFA, with a position for each
+ * pattern character, which is turned into a DFA lazily as strings are
+ * matched.  Each DFA State is the set of NFA positions still alive and
+ * caches its transitions, so once warm a match is one array lookup per
+ * character.  Characters that do not appear in any pattern share a single
+ * transition.  If the DFA grows past MAX_STATES new states are computed
+ * but no longer cached.
+ * <p>
+ * Matching is thread safe.  Only building a new State takes a lock.
+ */
+public class Glob
+{
+   static final int        MAX_STATES = 10000;
+
+   static final byte       LITERAL    = 0;
+   static final byte       ONE        = 1;
+   static final byte       STAR       = 2;
+   static final byte       END        = 3;
+
+   byte[]                  kinds      = null;
+   int[]                   classes    = null;
+   int[]                   sets       = null;
+   boolean[]               rest       = null;
+   boolean[]               skips      = null;
+
+   int[]                   ascii      = new int[128];
+   Map<Character, Integer> unicode    = new HashMap();
+   int                     alphabet   = 1;
+
+   Map<IntBuffer, State>   states     = new HashMap();
+   State                   start      = null;
+   int                     size       = 0;
+
+   //scratch space for building states, guarded by this
+   boolean[]               marks      = null;
+   int[]                   positions  = null;
+
+   /**
+    * @param sets - each set of patterns reports as its own bit
+    */
+   public Glob(String[]... sets)
+   {
+      this(false, sets);
+   }
+
+   /**
+    * @param globstar - if a '**&#47;' can also match no directories
+    * @param sets - each set of patterns reports as its own bit
+    */
+   public Glob(boolean globstar, String[]... sets)
+   {
+      List<Byte> kinds = new ArrayList();
+      List<Integer> classes = new ArrayList();
+      List<Integer> bits = new ArrayList();
+      List<Integer> starts = new ArrayList();
+      List<Integer> skips = new ArrayList();
+
+      for (int i = 0; i < sets.length; i++)
+      {
+         for (int j = 0; sets[i] != null && j < sets[i].length; j++)
+         {
+            String pattern = sets[i][j];
+            starts.add(kinds.size());
+            size += 1;
+
+            for (int k = 0; k < pattern.length(); k++)
+            {
+               char c = pattern.charAt(k);
+               if (c == '*')
+               {
+                  //'**' is the same as '*'
+                  if (k == 0 || pattern.charAt(k - 1) != '*')
+                  {
+                     int end = k;
+                     while (end < pattern.length() && pattern.charAt(end) == '*')
+                        end++;
+
+                     if (globstar && end - k > 1 && end < pattern.length() && pattern.charAt(end) == '/')
+                        skips.add(kinds.size());
+
+                     kinds.add(STAR);
+                     classes.add(0);
+                     bits.add(1 << i);
+                  }
+               }
+               else
+               {
+                  kinds.add(c == '?' ? ONE : LITERAL);
+                  classes.add(c == '?' ? 0 : classOf(c, true));
+                  bits.add(1 << i);
+               }
+            }
+            kinds.add(END);
+            classes.add(0);
+            bits.add(1 << i);
+         }
+      }
+
+      int size = kinds.size();
+      this.kinds = new byte[size];
+      this.classes = new int[size];
+      this.sets = new int[size];
+      this.rest = new boolean[size];
+      this.skips = new boolean[size];
+      this.marks = new boolean[size];
+      this.positions = new int[size];
+
+      for (int i = size - 1; i >= 0; i--)
+      {
+         this.kinds[i] = kinds.get(i);
+         this.classes[i] = classes.get(i);
+         this.sets[i] = bits.get(i);
+         this.rest[i] = this.kinds[i] == STAR && (this.kinds[i + 1] == END || this.rest[i + 1]);
+      }
+
+      for (int position : skips)
+      {
+         this.skips[position] = true;
+      }
+
+      int count = 0;
+      for (int position : starts)
+      {
+         count = close(position, count);
+      }
+      start = state(count, true);
+   }
+
+   /**
+    * @return the number of patterns
+    */
+   public int size()
+   {
+      return size;
+   }
+
+   /**
+    * @return the bits of the sets with a pattern matching all of <code>string</code>
+    */
+   public int match(CharSequence string)
+   {
+      return next(start, string).matches;
+   }
+
+   public boolean matches(CharSequence string)
+   {
+      return match(string) != 0;
+   }
+
+   /**
+    * @return the state before any characters have been matched
+    */
+   public State start()
+   {
+      return start;
+   }
+
+   /**
+    * @return the state after matching <code>string</code> from <code>state</code>
+    */
+   public State next(State state, CharSequence string)
+   {
+      for (int i = 0; i < string.length() && state.positions.length > 0; i++)
+      {
+         state = next(state, string.charAt(i));
+      }
+      return state;
+   }
+
+   public State next(State state, char c)
+   {
+      int index = c < 128 ? ascii[c] : classOf(c, false);
+      State next = state.next[index];
+      if (next == null)
+         next = step(state, index);
+
+      return next;
+   }
+
+   int classOf(char c, boolean add)
+   {
+      if (c < 128)
+      {
+         if (ascii[c] == 0 && add)
+            ascii[c] = alphabet++;
+
+         return ascii[c];
+      }
+
+      Integer index = unicode.get(c);
+      if (index == null && add)
+      {
+         index = alphabet++;
+         unicode.put(c, index);
+      }
+      return index == null ? 0 : index;
+   }
+
+   synchronized State step(State state, int index)
+   {
+      int count = 0;
+      for (int position : state.positions)
+      {
+         switch (kinds[position])
+         {
+            case STAR:
+               count = close(position, count);
+               break;
+            case ONE:
+               count = close(position + 1, count);
+               break;
+            case LITERAL:
+               if (index != 0 && classes[position] == index)
+                  count = close(position + 1, count);
+               break;
+         }
+      }
+
+      boolean cache = states.size() < MAX_STATES;
+      State next = state(count, cache);
+      if (cache)
+         state.next[index] = next;
+
+      return next;
+   }
+
+   /**
+    * Adds <code>position</code> to the scratch positions along with the
+    * positions after any '*' it starts with, as '*' can match nothing.
+    */
+   int close(int position, int count)
+   {
+      if (!marks[position])
+      {
+         marks[position] = true;
+         positions[count++] = position;
+
+         if (kinds[position] == STAR)
+         {
+            count = close(position + 1, count);
+
+            //a globstar '**/' matching no directories skips its '/' too
+            if (skips[position])
+               count = close(position + 2, count);
+         }
+      }
+      return count;
+   }
+
+   /**
+    * Turns the scratch positions into a State, reusing the one already
+    * built for the same positions, and clears the scratch marks.
+    */
+   State state(int count, boolean cache)
+   {
+      int[] key = Arrays.copyOf(positions, count);
+      Arrays.sort(key);
+
+      for (int i = 0; i < count; i++)
+      {
+         marks[key[i]] = false;
+      }
+
+      State state = states.get(IntBuffer.wrap(key));
+      if (state == null)
+      {
+         state = new State(key);
+         if (cache)
+            states.put(IntBuffer.wrap(key), state);
+      }
+      return state;
+   }
+
+   public class State
+   {
+      final int[]   positions;
+      final State[] next;
+      final int     matches;
+      final int     alive;
+      final int     all;
+
+      State(int[] positions)
+      {
+         this.positions = positions;
+         this.next = new State[alphabet];
+
+         int matches = 0;
+         int alive = 0;
+         int all = 0;
+         for (int position : positions)
+         {
+            if (kinds[position] == END)
+               matches |= sets[position];
+            else
+               alive |= sets[position];
+            if (rest[position])
+               all |= sets[position];
+         }
+         this.matches = matches;
+         this.alive = alive;
+         this.all = all;
+      }
+
+      /**
+       * @return the bits of the sets with a pattern matching everything so far
+       */
+      public int matches()
+      {
+         return matches;
+      }
+
+      /**
+       * @return the bits of the sets with a pattern that could still
+       *         match if more characters were added
+       */
+      public int alive()
+      {
+         return alive;
+      }
+
+      /**
+       * @return the bits of the sets with a pattern that will match no
+       *         matter what characters are added
+       */
+      public int all()
+      {
+         return all;
+      }
+   }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2008-2017 Wells Burke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.forty11.j.utils;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts non negative values, typically durations in nanoseconds, into
+ * power of two buckets.  Each bucket is a striped LongAdder so concurrent
+ * record() calls from many threads do not contend on a single counter.
+ * <p>
+ * Percentiles read from a Snapshot are the upper bound of the bucket the
+ * percentile falls in, so they are accurate to within a factor of two.
+ */
+public class Histogram
+{
+   LongAdder[] buckets = new LongAdder[64];
+   LongAdder   sum     = new LongAdder();
+
+   public Histogram()
+   {
+      for (int i = 0; i < buckets.length; i++)
+      {
+         buckets[i] = new LongAdder();
+      }
+   }
+
+   public void record(long value)
+   {
+      if (value < 0)
+         value = 0;
+
+      buckets[64 - Long.numberOfLeadingZeros(value)].increment();
+      sum.add(value);
+   }
+
+   public Snapshot snapshot()
+   {
+      Snapshot snapshot = new Snapshot();
+      for (int i = 0; i < buckets.length; i++)
+      {
+         snapshot.counts[i] = buckets[i].sum();
+         snapshot.count += snapshot.counts[i];
+      }
+      snapshot.sum = sum.sum();
+      return snapshot;
+   }
+
+   public static class Snapshot
+   {
+      long[] counts = new long[64];
+      long   count  = 0;
+      long   sum    = 0;
+
+      public long getCount()
+      {
+         return count;
+      }
+
+      public long getSum()
+      {
+         return sum;
+      }
+
+      public long getMean()
+      {
+         return count == 0 ? 0 : sum / count;
+      }
+
+      /**
+       * @param percentile - between 0 and 100
+       */
+      public long getPercentile(double percentile)
+      {
+         long rank = (long) Math.ceil(count * Math.min(100, Math.max(0, percentile)) / 100);
+         long seen = 0;
+         for (int i = 0; i < counts.length; i++)
+         {
+            seen += counts[i];
+            if (seen >= rank && counts[i] > 0)
+               return i == 0 ? 0 : (1L << i) - 1;
+         }
+         return 0;
+      }
+
+      public long[] getCounts()
+      {
+         return counts;
+      }
+
+      public String toString()
+      {
+         return "count=" + count + " mean=" + getMean() + " p50=" + getPercentile(50) + " p99=" + getPercentile(99) + " max=" + getPercentile(100);
+      }
+   }
+}
@@ -0,0 +1,287 @@
+/*
+ * Copyright 2008-2017 Wells Burke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.forty11.j.utils;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A hierarchical hashed timing wheel.
+ * <p>
+ * Each of the LEVELS wheels has WHEEL buckets.  A bucket on level 0 covers
+ * one tick, a bucket on level 1 covers WHEEL ticks and so on.  A timeout is
+ * hashed into the lowest level that can hold its deadline and moves down a
+ * level each time the wheel above it rolls over, so inserting, canceling
+ * and firing are all O(1).
+ * <p>
+ * The buckets are only touched by the single ticker thread.  schedule() and
+ * cancel() hand their requests to the ticker through a lock free queue.
+ * Expired tasks are run on the ticker thread so they should do nothing more
+ * than hand work off to somewhere else, e.g. an Executor queue.  A task
+ * that throws does not stop the ticker, its error is kept on its Timeout.
+ */
+public class TimingWheel
+{
+   static final int                   BITS      = 8;
+   static final int                   WHEEL     = 1 << BITS;
+   static final int                   MASK      = WHEEL - 1;
+   static final int                   LEVELS    = 4;
+
+   long                               tickNanos = TimeUnit.MILLISECONDS.toNanos(10);
+   long                               start     = System.nanoTime();
+   long                               tick      = 0;
+   int                                size      = 0;
+
+   Timeout[][]                        buckets   = new Timeout[LEVELS][WHEEL];
+   ConcurrentLinkedQueue<Timeout>     pending   = new ConcurrentLinkedQueue();
+
+   Thread                             ticker    = null;
+   volatile boolean                   sleeping  = false;
+
+   public TimingWheel(String name, long tick, TimeUnit unit, boolean daemon)
+   {
+      this.tickNanos = Math.max(1, unit.toNanos(tick));
+
+      for (int i = 0; i < LEVELS; i++)
+      {
+         for (int j = 0; j < WHEEL; j++)
+         {
+            Timeout head = new Timeout(null, 0);
+            head.prev = head;
+            head.next = head;
+            buckets[i][j] = head;
+         }
+      }
+
+      ticker = new Thread(new Runnable()
+         {
+            public void run()
+            {
+               processTicks();
+            }
+         }, name);
+      ticker.setDaemon(daemon);
+      ticker.start();
+   }
+
+   /**
+    * Runs <code>task</code> on the ticker thread once <code>delay</code>
+    * has passed, rounded up to the next tick.
+    */
+   public Timeout schedule(Runnable task, long delay, TimeUnit unit)
+   {
+      long elapsed = System.nanoTime() - start + Math.max(0, unit.toNanos(delay));
+      Timeout timeout = new Timeout(task, (elapsed + tickNanos - 1) / tickNanos);
+
+      pending.offer(timeout);
+      if (sleeping)
+         LockSupport.unpark(ticker);
+
+      return timeout;
+   }
+
+   void processTicks()
+   {
+      while (true)
+      {
+         long now = (System.nanoTime() - start) / tickNanos;
+
+         //nothing is waiting on the skipped ticks
+         if (size == 0)
+            tick = Math.max(tick, now);
+
+         drainPending();
+
+         while (tick < now)
+         {
+            tick += 1;
+            advance();
+         }
+
+         if (size == 0)
+         {
+            sleeping = true;
+            if (pending.isEmpty())
+               LockSupport.park(this);
+            sleeping = false;
+         }
+         else
+         {
+            LockSupport.parkNanos(this, (tick + 1) * tickNanos - (System.nanoTime() - start));
+         }
+      }
+   }
+
+   void drainPending()
+   {
+      Timeout timeout = null;
+      while ((timeout = pending.poll()) != null)
+      {
+         if (timeout.state.get() == Timeout.CANCELLED)
+         {
+            unlink(timeout);
+         }
+         else if (timeout.prev == null)
+         {
+            insert(timeout);
+         }
+      }
+   }
+
+   /**
+    * Moves the wheels forward to <code>tick</code>, cascading
+    * any upper level bucket whose time has come, then fires
+    * everything in the level 0 bucket.
+    */
+   void advance()
+   {
+      for (int level = LEVELS - 1; level > 0; level--)
+      {
+         if ((tick & ((1L << (BITS * level)) - 1)) == 0)
+         {
+            Timeout head = buckets[level][(int) (tick >>> (BITS * level)) & MASK];
+            while (head.next != head)
+            {
+               Timeout timeout = head.next;
+               unlink(timeout);
+               insert(timeout);
+            }
+         }
+      }
+
+      Timeout head = buckets[0][(int) tick & MASK];
+      while (head.next != head)
+      {
+         Timeout timeout = head.next;
+         unlink(timeout);
+         fire(timeout);
+      }
+   }
+
+   void insert(Timeout timeout)
+   {
+      long deadline = timeout.deadline;
+      long delta = deadline - tick;
+
+      if (delta <= 0)
+      {
+         fire(timeout);
+         return;
+      }
+
+      int level = 0;
+      while (level < LEVELS - 1 && delta >= (1L << (BITS * (level + 1))))
+      {
+         level++;
+      }
+
+      //farther out than the top wheel can reach, park it in the
+      //last top level bucket and let it cascade back around
+      if (delta >= (1L << (BITS * LEVELS)))
+         deadline = tick + (1L << (BITS * LEVELS)) - 1;
+
+      Timeout head = buckets[level][(int) (deadline >>> (BITS * level)) & MASK];
+      timeout.prev = head.prev;
+      timeout.next = head;
+      head.prev.next = timeout;
+      head.prev = timeout;
+      size++;
+   }
+
+   void unlink(Timeout timeout)
+   {
+      if (timeout.prev != null)
+      {
+         timeout.prev.next = timeout.next;
+         timeout.next.prev = timeout.prev;
+         timeout.prev = null;
+         timeout.next = null;
+         size--;
+      }
+   }
+
+   void fire(Timeout timeout)
+   {
+      if (timeout.state.compareAndSet(Timeout.WAITING, Timeout.EXPIRED))
+      {
+         try
+         {
+            timeout.task.run();
+         }
+         catch (Throwable ex)
+         {
+            timeout.error = ex;
+         }
+      }
+   }
+
+   public class Timeout
+   {
+      static final int WAITING   = 0;
+      static final int CANCELLED = 1;
+      static final int EXPIRED   = 2;
+
+      Runnable           task     = null;
+      long               deadline = 0;
+      AtomicInteger      state    = new AtomicInteger(WAITING);
+      volatile Throwable error    = null;
+
+      Timeout            prev     = null;
+      Timeout            next     = null;
+
+      Timeout(Runnable task, long deadline)
+      {
+         this.task = task;
+         this.deadline = deadline;
+      }
+
+      /**
+       * @return true if this call kept the task from running
+       */
+      public boolean cancel()
+      {
+         if (state.compareAndSet(WAITING, CANCELLED))
+         {
+            //the ticker unlinks it from its bucket
+            pending.offer(this);
+            if (sleeping)
+               LockSupport.unpark(ticker);
+            return true;
+         }
+         return false;
+      }
+
+      public boolean isCancelled()
+      {
+         return state.get() == CANCELLED;
+      }
+
+      public boolean isExpired()
+      {
+         return state.get() == EXPIRED;
+      }
+
+      /**
+       * @return what the task threw when it ran, if anything
+       */
+      public Throwable getError()
+      {
+         return error;
+      }
+   }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2008-2017 Wells Burke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.forty11.j.api;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class FilesTest
+{
+   @Test
+   public void transferKeepsSourcePermissions() throws Exception
+   {
+      Path dir = java.nio.file.Files.createTempDirectory("FilesTest");
+      assumeTrue(dir.getFileSystem().supportedFileAttributeViews().contains("posix"));
+      try
+      {
+         File src = dir.resolve("run.sh").toFile();
+         File dst = dir.resolve("copy.sh").toFile();
+         Files.write(src, "#!/bin/sh\n");
+         Files.write(dst, "old\n");
+
+         Set<PosixFilePermission> executable = PosixFilePermissions.fromString("rwxr-x---");
+         java.nio.file.Files.setPosixFilePermissions(src.toPath(), executable);
+         java.nio.file.Files.setPosixFilePermissions(dst.toPath(), PosixFilePermissions.fromString("rw-------"));
+
+         Files.transfer(src, dst);
+         assertEquals(executable, java.nio.file.Files.getPosixFilePermissions(dst.toPath()));
+
+         dst.delete();
+         Files.transfer(src, dst);
+         assertEquals(executable, java.nio.file.Files.getPosixFilePermissions(dst.toPath()));
+      }
+      finally
+      {
+         Files.delete(dir.toFile());
+      }
+   }
+
+   @Test
+   public void transferWritesThroughLinks() throws Exception
+   {
+      Path dir = java.nio.file.Files.createTempDirectory("FilesTest");
+      try
+      {
+         File src = dir.resolve("src.txt").toFile();
+         File target = dir.resolve("target.txt").toFile();
+         Path link = dir.resolve("link.txt");
+         Files.write(src, "new\n");
+         Files.write(target, "old\n");
+
+         try
+         {
+            java.nio.file.Files.createSymbolicLink(link, target.toPath().getFileName());
+         }
+         catch (UnsupportedOperationException | IOException ex)
+         {
+            assumeTrue(false);
+         }
+
+         Files.transfer(src, link.toFile());
+         assertTrue(java.nio.file.Files.isSymbolicLink(link));
+         assertEquals("new\n", Files.read(target));
+      }
+      finally
+      {
+         Files.delete(dir.toFile());
+      }
+   }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2008-2017 Wells Burke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.forty11.j.utils;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class ExecutorTest
+{
+   @Test
+   public void periodicTaskEndsWhenShutDown() throws Exception
+   {
+      Executor executor = new Executor(1, 2, 100);
+      final CountDownLatch runs = new CountDownLatch(3);
+
+      Executor.Task task = executor.scheduleAtFixedRate(new Runnable()
+         {
+            public void run()
+            {
+               runs.countDown();
+            }
+         }, 0, 10, TimeUnit.MILLISECONDS);
+
+      assertTrue(runs.await(5, TimeUnit.SECONDS));
+      executor.shutdown();
+
+      try
+      {
+         task.get(5, TimeUnit.SECONDS);
+         fail("a periodic task never completes normally");
+      }
+      catch (CancellationException ex)
+      {
+         //expected
+      }
+
+      assertTrue(task.isDone());
+      assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+   }
+}